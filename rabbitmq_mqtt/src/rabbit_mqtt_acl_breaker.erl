@@ -0,0 +1,157 @@
+-module(rabbit_mqtt_acl_breaker).
+
+-behaviour(gen_server).
+
+-include("rabbit_mqtt.hrl").
+
+-export([start_link/0, allow/0, record/1, info/0]).
+
+-export([init/1, handle_call/3, handle_cast/2, handle_info/2,
+         terminate/2, code_change/3]).
+
+%% Circuit breaker in front of the ACL queries to redis. The loaders
+%% report the outcome of every round trip; once the share of failed or
+%% slow round trips in the current window reaches failure_ratio the
+%% breaker opens and the loaders fail fetches straight away, without
+%% touching redis, for open_for milliseconds. After that a single probe
+%% round trip is let through, which closes the breaker again if it
+%% succeeds in time and re-opens it otherwise.
+%%
+%% The state is kept in a protected table so that allow/0 is a plain
+%% ets read for the (many) callers; only transitions go through here.
+
+-record(breaker_state, {window_start,
+                        calls,
+                        bad,
+                        trips}).
+
+-define(TABLE, ?MODULE).
+
+%%----------------------------------------------------------------------------
+
+start_link() ->
+    gen_server:start_link({local, ?MODULE}, ?MODULE, [], []).
+
+allow() ->
+    case catch ets:lookup(?TABLE, state) of
+        [{state, closed}]      -> true;
+        [{state, half_open}]   -> false;
+        [{state, open, Until}] -> now_ms() >= Until andalso
+                                      gen_server:call(?MODULE, probe, infinity);
+        %% not running, e.g. in tests of the loaders alone
+        _                      -> true
+    end.
+
+%% Outcome is {ok, LatencyMs} or error.
+record(Outcome) ->
+    gen_server:cast(?MODULE, {record, Outcome}).
+
+info() ->
+    gen_server:call(?MODULE, info, infinity).
+
+%%----------------------------------------------------------------------------
+
+init([]) ->
+    ?TABLE = ets:new(?TABLE, [set, protected, named_table,
+                              {read_concurrency, true}]),
+    true = ets:insert(?TABLE, {state, closed}),
+    {ok, new_window(#breaker_state{trips = 0})}.
+
+handle_call(probe, _From, State) ->
+    case ets:lookup(?TABLE, state) of
+        [{state, open, Until}] ->
+            case now_ms() >= Until of
+                true  -> true = ets:insert(?TABLE, {state, half_open}),
+                         {reply, true, State};
+                false -> {reply, false, State}
+            end;
+        [{state, half_open}] ->
+            {reply, false, State};
+        [{state, closed}] ->
+            {reply, true, State}
+    end;
+
+handle_call(info, _From, State = #breaker_state{calls = Calls,
+                                                bad   = Bad,
+                                                trips = Trips}) ->
+    [Row] = ets:lookup(?TABLE, state),
+    {reply, [{state, element(2, Row)},
+             {calls, Calls},
+             {bad,   Bad},
+             {trips, Trips}], State};
+
+handle_call(Msg, _From, State) ->
+    {stop, {unhandled_call, Msg}, State}.
+
+handle_cast({record, Outcome}, State) ->
+    Bad = is_bad(Outcome),
+    case ets:lookup(?TABLE, state) of
+        [{state, closed}] ->
+            {noreply, maybe_trip(count(Bad, roll_window(State)))};
+        [{state, half_open}] when Bad ->
+            {noreply, trip(State)};
+        [{state, half_open}] ->
+            rabbit_log:info("MQTT acl circuit breaker closed~n"),
+            true = ets:insert(?TABLE, {state, closed}),
+            {noreply, new_window(State)};
+        [{state, open, _}] ->
+            %% late outcome of a round trip started before we opened
+            {noreply, State}
+    end;
+
+handle_cast(Msg, State) ->
+    {stop, {unhandled_cast, Msg}, State}.
+
+handle_info(Info, State) ->
+    {stop, {unhandled_info, Info}, State}.
+
+terminate(_Reason, _State) ->
+    ok.
+
+code_change(_OldVsn, State, _Extra) ->
+    {ok, State}.
+
+%%----------------------------------------------------------------------------
+
+is_bad(error) ->
+    true;
+is_bad({ok, Latency}) ->
+    Latency > config(slow_call, 1000).
+
+count(Bad, State = #breaker_state{calls = Calls, bad = BadCalls}) ->
+    State#breaker_state{calls = Calls + 1,
+                        bad   = case Bad of
+                                    true  -> BadCalls + 1;
+                                    false -> BadCalls
+                                end}.
+
+maybe_trip(State = #breaker_state{calls = Calls, bad = Bad}) ->
+    case Calls >= config(min_requests, 10) andalso
+         Bad / Calls >= config(failure_ratio, 0.5) of
+        true  -> trip(State);
+        false -> State
+    end.
+
+trip(State = #breaker_state{trips = Trips}) ->
+    OpenFor = config(open_for, 5000),
+    rabbit_log:warning("MQTT acl circuit breaker open for ~p ms~n", [OpenFor]),
+    true = ets:insert(?TABLE, {state, open, now_ms() + OpenFor}),
+    new_window(State#breaker_state{trips = Trips + 1}).
+
+roll_window(State = #breaker_state{window_start = Start}) ->
+    case now_ms() - Start >= config(window, 10000) of
+        true  -> new_window(State);
+        false -> State
+    end.
+
+new_window(State) ->
+    State#breaker_state{window_start = now_ms(), calls = 0, bad = 0}.
+
+config(Key, Default) ->
+    case rabbit_mqtt_util:env(acl_breaker) of
+        Opts when is_list(Opts) -> proplists:get_value(Key, Opts, Default);
+        _                       -> Default
+    end.
+
+now_ms() ->
+    time_compat:monotonic_time(milli_seconds).
@@ -0,0 +1,221 @@
+-module(rabbit_mqtt_acl_cache).
+
+-behaviour(gen_server).
+
+-include("rabbit_mqtt.hrl").
+
+-export([start_link/0, lookup/1, lookup_stale/1, insert/2, insert/3, generation/1,
+         delete/1, delete_all/0, info/0]).
+
+-export([init/1, handle_call/3, handle_cast/2, handle_info/2,
+         terminate/2, code_change/3]).
+
+%% Node-wide cache of compiled ACL snapshots keyed by client id, shared
+%% by all connections so that reconnecting clients do not go to redis.
+%%
+%% Entries are read and written directly by the connection processes.
+%% This process only owns the tables and evicts entries once the cache
+%% grows past acl_cache_max_entries, using the CLOCK approximation of
+%% LRU: a hit sets the reference bit of an entry, the sweeping hand
+%% clears it, and entries found with a clear bit (or expired) go.
+%%
+%% Invalidations bump a generation number of the client (delete/1) or
+%% of the whole cache (delete_all/0). A fetch reads the generation
+%% before asking redis and hands it to insert/3, which drops the rules
+%% if an invalidation came in meanwhile, so that a round trip started
+%% before a change cannot put the old rules back. Generations of
+%% single clients are kept until the next delete_all/0.
+
+-record(cache_state, {hand}).
+
+-define(TABLE, rabbit_mqtt_acl_cache).
+-define(STATS_TABLE, rabbit_mqtt_acl_cache_stats).
+-define(GEN_TABLE, rabbit_mqtt_acl_cache_generations).
+
+%% rows are {ClientId, Acl, ExpiresAt, Referenced}
+-define(REF_POS, 4).
+
+%%----------------------------------------------------------------------------
+
+start_link() ->
+    gen_server:start_link({local, ?MODULE}, ?MODULE, [], []).
+
+lookup(ClientId) ->
+    Now = now_ms(),
+    case catch ets:lookup(?TABLE, ClientId) of
+        [{_, Acl, Expires, Ref}] when Expires > Now ->
+            case Ref of
+                1 -> ok;
+                0 -> ets:update_element(?TABLE, ClientId, {?REF_POS, 1})
+            end,
+            bump(hits),
+            {ok, Acl};
+        _ ->
+            bump(misses),
+            not_found
+    end.
+
+%% Also returns entries past their TTL that have not been swept yet, for
+%% use while redis is unavailable. Invalidated entries are gone for good.
+lookup_stale(ClientId) ->
+    case catch ets:lookup(?TABLE, ClientId) of
+        [{_, Acl, _Expires, _Ref}] -> {ok, Acl};
+        _                          -> not_found
+    end.
+
+insert(ClientId, Acl) ->
+    _ = insert_row(ClientId, Acl),
+    ok.
+
+%% Generation is what generation/1 returned before the rules were
+%% fetched. Checked again after the insert, in case an invalidation
+%% slipped in between the check and the insert.
+insert(ClientId, Acl, Generation) ->
+    case generation(ClientId) of
+        Generation ->
+            case insert_row(ClientId, Acl) of
+                none -> ok;
+                Row  -> case generation(ClientId) of
+                            Generation -> ok;
+                            _          -> true = ets:delete_object(?TABLE, Row),
+                                          ok
+                        end
+            end;
+        _ ->
+            ok
+    end.
+
+generation(ClientId) ->
+    {counter(epoch), counter(ClientId)}.
+
+%% The generation goes up before the entry goes, see insert/3.
+delete(ClientId) ->
+    bump_generation(ClientId),
+    true = ets:delete(?TABLE, ClientId),
+    ok.
+
+delete_all() ->
+    Epoch = bump_generation(epoch),
+    true = ets:delete_all_objects(?GEN_TABLE),
+    true = ets:insert(?GEN_TABLE, {epoch, Epoch}),
+    true = ets:delete_all_objects(?TABLE),
+    ok.
+
+info() ->
+    [{size,        ets:info(?TABLE, size)},
+     {memory,      ets:info(?TABLE, memory) * erlang:system_info(wordsize)},
+     {max_entries, max_entries()},
+     {ttl,         ttl()} |
+     [{Key, Value} || {Key, Value} <- lists:sort(ets:tab2list(?STATS_TABLE))]].
+
+%%----------------------------------------------------------------------------
+
+init([]) ->
+    ?TABLE = ets:new(?TABLE, [set, public, named_table,
+                              {read_concurrency, true},
+                              {write_concurrency, true}]),
+    ?STATS_TABLE = ets:new(?STATS_TABLE, [set, public, named_table,
+                                          {write_concurrency, true}]),
+    ?GEN_TABLE = ets:new(?GEN_TABLE, [set, public, named_table,
+                                      {read_concurrency, true}]),
+    true = ets:insert(?GEN_TABLE, {epoch, 0}),
+    true = ets:insert(?STATS_TABLE, [{hits, 0}, {misses, 0}, {evictions, 0}]),
+    {ok, #cache_state{hand = '$end_of_table'}}.
+
+handle_call(Msg, _From, State) ->
+    {stop, {unhandled_call, Msg}, State}.
+
+handle_cast(evict, State = #cache_state{hand = Hand}) ->
+    Excess = ets:info(?TABLE, size) - max_entries(),
+    {noreply, State#cache_state{hand = sweep(Hand, Excess, now_ms())}};
+
+handle_cast(Msg, State) ->
+    {stop, {unhandled_cast, Msg}, State}.
+
+handle_info(Info, State) ->
+    {stop, {unhandled_info, Info}, State}.
+
+terminate(_Reason, _State) ->
+    ok.
+
+code_change(_OldVsn, State, _Extra) ->
+    {ok, State}.
+
+%%----------------------------------------------------------------------------
+
+sweep(Hand, N, _Now) when N =< 0 ->
+    Hand;
+sweep(Hand, N, Now) ->
+    case advance(Hand) of
+        '$end_of_table' ->
+            '$end_of_table';
+        Key ->
+            case ets:lookup(?TABLE, Key) of
+                [{_, _, Expires, 1}] when Expires > Now ->
+                    ets:update_element(?TABLE, Key, {?REF_POS, 0}),
+                    sweep(Key, N, Now);
+                [_] ->
+                    ets:delete(?TABLE, Key),
+                    bump(evictions),
+                    sweep(Key, N - 1, Now);
+                [] ->
+                    sweep(Key, N, Now)
+            end
+    end.
+
+%% The key under the hand may have been deleted by a connection in the
+%% meantime, in which case ets:next/2 on a set table fails: restart
+%% from the top, which only makes the clock skip ahead.
+advance('$end_of_table') ->
+    ets:first(?TABLE);
+advance(Key) ->
+    case catch ets:next(?TABLE, Key) of
+        '$end_of_table'       -> ets:first(?TABLE);
+        {'EXIT', {badarg, _}} -> ets:first(?TABLE);
+        Next                  -> Next
+    end.
+
+insert_row(ClientId, Acl) ->
+    case {ttl(), max_entries()} of
+        {TTL, Max} when is_integer(TTL), TTL > 0, is_integer(Max), Max > 0 ->
+            Row = {ClientId, Acl, now_ms() + TTL, 1},
+            true = ets:insert(?TABLE, Row),
+            case ets:info(?TABLE, size) > Max of
+                true  -> gen_server:cast(?MODULE, evict);
+                false -> ok
+            end,
+            Row;
+        _ ->
+            none
+    end.
+
+counter(Key) ->
+    case catch ets:lookup(?GEN_TABLE, Key) of
+        [{_, N}] -> N;
+        _        -> 0
+    end.
+
+bump_generation(Key) ->
+    case catch ets:update_counter(?GEN_TABLE, Key, 1) of
+        N when is_integer(N) ->
+            N;
+        _ ->
+            case ets:insert_new(?GEN_TABLE, {Key, 1}) of
+                true  -> 1;
+                %% someone else created it in the meantime
+                false -> ets:update_counter(?GEN_TABLE, Key, 1)
+            end
+    end.
+
+bump(Counter) ->
+    catch ets:update_counter(?STATS_TABLE, Counter, 1),
+    ok.
+
+ttl() ->
+    rabbit_mqtt_util:env(acl_cache_ttl).
+
+max_entries() ->
+    rabbit_mqtt_util:env(acl_cache_max_entries).
+
+now_ms() ->
+    time_compat:monotonic_time(milli_seconds).
@@ -0,0 +1,155 @@
+-module(rabbit_mqtt_acl_invalidator).
+
+-behaviour(gen_server).
+
+-include("rabbit_mqtt.hrl").
+
+-export([start_link/0]).
+
+-export([init/1, handle_call/3, handle_cast/2, handle_info/2,
+         terminate/2, code_change/3]).
+
+%% Listens to redis for changes of ACL hashes and evicts the affected
+%% client from rabbit_mqtt_acl_cache, then asks its connection (if any)
+%% to reload its snapshot. This lets the caches run with long TTLs.
+%%
+%% acl_invalidation selects the source of change events:
+%%   keyspace        - keyspace notifications for the keys of acl_cmd,
+%%                     redis must run with notify-keyspace-events
+%%                     including "K", "h" (HSET, HDEL, ...), "g" (DEL)
+%%                     and "x" (expiry), e.g. "Kghx" or "KA"; any event
+%%                     on a key evicts its client
+%%   {channel, Name} - a dedicated channel on which the client ids whose
+%%                     rules changed are published
+%%   none            - no invalidation, rely on TTLs only
+%%
+%% With several redis nodes every one of them is subscribed to.
+
+-record(invalidator_state, {subs,
+                            source,
+                            key_prefix,
+                            key_suffix}).
+
+-define(RECONNECT_SLEEP, 100).
+
+%%----------------------------------------------------------------------------
+
+start_link() ->
+    gen_server:start_link({local, ?MODULE}, ?MODULE, [], []).
+
+%%----------------------------------------------------------------------------
+
+init([]) ->
+    {ok, AclCmd} = application:get_env(?APP, acl_cmd),
+    {Prefix, Suffix} = key_template(AclCmd),
+    State = #invalidator_state{subs       = [],
+                               source     = rabbit_mqtt_util:env(acl_invalidation),
+                               key_prefix = Prefix,
+                               key_suffix = Suffix},
+    case State#invalidator_state.source of
+        none -> {ok, State};
+        _    -> Subs = [start_sub(Node, State)
+                        || Node <- rabbit_mqtt_acl_redis:redis_nodes()],
+                {ok, State#invalidator_state{subs = Subs}}
+    end.
+
+handle_call(Msg, _From, State) ->
+    {stop, {unhandled_call, Msg}, State}.
+
+handle_cast(Msg, State) ->
+    {stop, {unhandled_cast, Msg}, State}.
+
+handle_info(Info, State = #invalidator_state{subs = Subs}) ->
+    Sub = case Info of
+              {eredis_reconnect_failed, S, _} -> S;
+              _ when is_tuple(Info)           -> element(tuple_size(Info), Info);
+              _                               -> undefined
+          end,
+    case lists:member(Sub, Subs) of
+        true  -> ok = handle_sub_message(Info, Sub, State),
+                 eredis_sub:ack_message(Sub),
+                 {noreply, State};
+        false -> {stop, {unhandled_info, Info}, State}
+    end.
+
+terminate(_Reason, #invalidator_state{subs = Subs}) ->
+    [catch eredis_sub:stop(Sub) || Sub <- Subs],
+    ok.
+
+code_change(_OldVsn, State, _Extra) ->
+    {ok, State}.
+
+%%----------------------------------------------------------------------------
+
+start_sub({Host, Port, Opts}, State) ->
+    {ok, Sub} = eredis_sub:start_link(Host, Port,
+                                      proplists:get_value(password, Opts, ""),
+                                      ?RECONNECT_SLEEP, infinity, drop),
+    ok = eredis_sub:controlling_process(Sub),
+    ok = subscribe(Sub, State),
+    Sub.
+
+handle_sub_message({subscribed, _Channel, _}, _Sub, _State) ->
+    ok;
+%% Whatever the event (hset, hdel, del, expired, ...), the rules of the
+%% client are not what is cached any more.
+handle_sub_message({pmessage, _Pattern, Channel, _Event, _}, _Sub, State) ->
+    case client_id_from_key(keyspace_key(Channel), State) of
+        {ok, ClientId} -> invalidate(ClientId);
+        error          -> ok
+    end;
+handle_sub_message({message, _Channel, ClientId, _}, _Sub, _State) ->
+    invalidate(ClientId);
+%% Changes published while we were disconnected are lost, and eredis_sub
+%% does not restore subscriptions, so drop everything and resubscribe.
+handle_sub_message({eredis_connected, _}, Sub, State) ->
+    rabbit_log:info("MQTT acl invalidation reconnected to redis~n"),
+    ok = rabbit_mqtt_acl_cache:delete_all(),
+    subscribe(Sub, State);
+handle_sub_message({eredis_disconnected, _}, _Sub, _State) ->
+    rabbit_log:warning("MQTT acl invalidation disconnected from redis~n");
+handle_sub_message({eredis_reconnect_attempt, _}, _Sub, _State) ->
+    ok;
+handle_sub_message({eredis_reconnect_failed, _, _Reason}, _Sub, _State) ->
+    ok.
+
+subscribe(Sub, #invalidator_state{source     = keyspace,
+                                  key_prefix = Prefix,
+                                  key_suffix = Suffix}) ->
+    eredis_sub:psubscribe(
+      Sub, [<<"__keyspace@*__:", Prefix/binary, "*", Suffix/binary>>]);
+subscribe(Sub, #invalidator_state{source = {channel, Channel}}) ->
+    eredis_sub:subscribe(Sub, [rabbit_data_coercion:to_binary(Channel)]).
+
+invalidate(ClientId) ->
+    rabbit_log:debug("MQTT acl of client ~p changed~n", [ClientId]),
+    ok = rabbit_mqtt_acl_cache:delete(ClientId),
+    case catch rabbit_mqtt_collector:lookup(ClientId) of
+        {ok, Pid} -> Pid ! refresh_acl;
+        _         -> ok
+    end,
+    ok.
+
+%% "HGETALL mqtt_acl:~c" -> {<<"mqtt_acl:">>, <<>>}
+key_template(AclCmd) ->
+    [Key | _] = [T || T <- string:tokens(AclCmd, " "),
+                      string:str(T, "~c") > 0],
+    Pos = string:str(Key, "~c"),
+    {list_to_binary(string:substr(Key, 1, Pos - 1)),
+     list_to_binary(string:substr(Key, Pos + 2))}.
+
+%% <<"__keyspace@0__:mqtt_acl:00100001">> -> <<"mqtt_acl:00100001">>
+keyspace_key(Channel) ->
+    [_, Key] = binary:split(Channel, <<"__:">>),
+    Key.
+
+client_id_from_key(Key, #invalidator_state{key_prefix = Prefix,
+                                           key_suffix = Suffix}) ->
+    PrefixLen = byte_size(Prefix),
+    SuffixLen = byte_size(Suffix),
+    IdLen = byte_size(Key) - PrefixLen - SuffixLen,
+    case IdLen > 0 of
+        true  -> <<_:PrefixLen/binary, Id:IdLen/binary, _/binary>> = Key,
+                 {ok, Id};
+        false -> error
+    end.
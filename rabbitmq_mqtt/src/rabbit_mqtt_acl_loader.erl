@@ -0,0 +1,256 @@
+-module(rabbit_mqtt_acl_loader).
+
+-behaviour(gen_server).
+
+-include("rabbit_mqtt.hrl").
+
+-export([start_link/1, fetch/1, fetch_async/1, await/1, info/0, shards/0, name/1]).
+
+-export([init/1, handle_call/3, handle_cast/2, handle_info/2,
+         terminate/2, code_change/3]).
+
+%% Coalesces ACL fetches that miss rabbit_mqtt_acl_cache. Concurrent
+%% fetches for the same client id are answered by a single redis
+%% request, and fetches for different client ids arriving within
+%% acl_batch_window milliseconds are sent to redis as one pipeline.
+%%
+%% Client ids are spread over acl_loader_shards loaders (by default one
+%% per scheduler). A loader only does bookkeeping, the redis round trip
+%% of each batch happens in a short-lived worker process which is killed
+%% if it does not finish within acl_timeout, so a fetch never waits much
+%% longer than acl_batch_window + acl_timeout. Batches are not sent at
+%% all while rabbit_mqtt_acl_breaker is open.
+%%
+%% Only fetches that have not been sent to redis yet are coalesced: a
+%% fetch arriving while a round trip for the same client is under way,
+%% e.g. the reload after an invalidation, gets a round trip of its own,
+%% and the rules of the older one are kept out of the cache by the
+%% generation check of rabbit_mqtt_acl_cache:insert/3.
+
+-record(loader_state, {%% client id -> callers waiting for the next batch
+                       waiting,
+                       %% client ids to put in the next batch
+                       pending,
+                       flush_scheduled,
+                       %% worker pid -> {monitor, timer, [{client id, callers}], start}
+                       batches,
+                       requests,
+                       coalesced,
+                       round_trips}).
+
+%%----------------------------------------------------------------------------
+
+start_link(Shard) ->
+    gen_server:start_link({local, name(Shard)}, ?MODULE, [], []).
+
+fetch(ClientId) ->
+    gen_server:call(shard_for(ClientId), {fetch, ClientId}, infinity).
+
+%% Like fetch/1, but returns straight away with a reference to pass to
+%% await/1 once the caller is ready for the result.
+fetch_async(ClientId) ->
+    Loader = shard_for(ClientId),
+    MRef = erlang:monitor(process, Loader),
+    gen_server:cast(Loader, {fetch, ClientId, {self(), MRef}}),
+    MRef.
+
+await(MRef) ->
+    receive
+        {MRef, Acl} ->
+            erlang:demonitor(MRef, [flush]),
+            Acl;
+        {'DOWN', MRef, process, _, Reason} ->
+            {error, Reason}
+    end.
+
+info() ->
+    Infos = [gen_server:call(name(Shard), info, infinity)
+             || Shard <- lists:seq(1, shards())],
+    [{Key, lists:sum([proplists:get_value(Key, I) || I <- Infos])}
+     || Key <- [requests, coalesced, round_trips]].
+
+%%----------------------------------------------------------------------------
+
+init([]) ->
+    {ok, #loader_state{waiting         = dict:new(),
+                       pending         = [],
+                       flush_scheduled = false,
+                       batches         = dict:new(),
+                       requests        = 0,
+                       coalesced       = 0,
+                       round_trips     = 0}}.
+
+handle_call({fetch, ClientId}, From, State) ->
+    {noreply, enqueue(ClientId, From, State)};
+
+handle_call(info, _From, State = #loader_state{requests    = Requests,
+                                               coalesced   = Coalesced,
+                                               round_trips = RoundTrips}) ->
+    {reply, [{requests,    Requests},
+             {coalesced,   Coalesced},
+             {round_trips, RoundTrips}], State};
+
+handle_call(Msg, _From, State) ->
+    {stop, {unhandled_call, Msg}, State}.
+
+handle_cast({fetch, ClientId, From}, State) ->
+    {noreply, enqueue(ClientId, From, State)};
+
+handle_cast(Msg, State) ->
+    {stop, {unhandled_cast, Msg}, State}.
+
+handle_info(flush, State = #loader_state{pending = Pending, waiting = Waiting}) ->
+    Callers = [{ClientId, dict:fetch(ClientId, Waiting)}
+               || ClientId <- lists:reverse(Pending)],
+    State1 = State#loader_state{waiting         = dict:new(),
+                                pending         = [],
+                                flush_scheduled = false},
+    case rabbit_mqtt_acl_breaker:allow() of
+        true  -> {noreply, start_batch(Callers, State1)};
+        false -> fail(Callers, circuit_open),
+                 {noreply, State1}
+    end;
+
+handle_info({fetched, Pid, Results}, State = #loader_state{batches = Batches}) ->
+    case dict:find(Pid, Batches) of
+        {ok, {MRef, TRef, Callers, Started}} ->
+            erlang:demonitor(MRef, [flush]),
+            cancel_timer(TRef),
+            rabbit_mqtt_acl_breaker:record(outcome(Results, Started)),
+            reply(Results, Callers),
+            {noreply, State#loader_state{batches = dict:erase(Pid, Batches)}};
+        error ->
+            {noreply, State}
+    end;
+
+handle_info({batch_timeout, Pid}, State = #loader_state{batches = Batches}) ->
+    case dict:find(Pid, Batches) of
+        {ok, {MRef, _TRef, Callers, _Started}} ->
+            erlang:demonitor(MRef, [flush]),
+            exit(Pid, kill),
+            rabbit_log:warning("MQTT acl fetch timed out for ~p clients~n",
+                               [length(Callers)]),
+            rabbit_mqtt_acl_breaker:record(error),
+            fail(Callers, timeout),
+            {noreply, State#loader_state{batches = dict:erase(Pid, Batches)}};
+        error ->
+            {noreply, State}
+    end;
+
+handle_info({'DOWN', _MRef, process, Pid, Reason},
+            State = #loader_state{batches = Batches}) ->
+    {_MRef, TRef, Callers, _Started} = dict:fetch(Pid, Batches),
+    cancel_timer(TRef),
+    rabbit_log:error("MQTT acl batch fetch failed: ~p~n", [Reason]),
+    rabbit_mqtt_acl_breaker:record(error),
+    fail(Callers, Reason),
+    {noreply, State#loader_state{batches = dict:erase(Pid, Batches)}};
+
+handle_info(Info, State) ->
+    {stop, {unhandled_info, Info}, State}.
+
+terminate(_Reason, _State) ->
+    ok.
+
+code_change(_OldVsn, State, _Extra) ->
+    {ok, State}.
+
+%%----------------------------------------------------------------------------
+
+enqueue(ClientId, From, State = #loader_state{waiting   = Waiting,
+                                              pending   = Pending,
+                                              requests  = Requests,
+                                              coalesced = Coalesced}) ->
+    State1 = State#loader_state{requests = Requests + 1},
+    case dict:find(ClientId, Waiting) of
+        {ok, _} ->
+            State1#loader_state{waiting   = dict:append(ClientId, From, Waiting),
+                                coalesced = Coalesced + 1};
+        error ->
+            schedule_flush(State1#loader_state{
+                             waiting = dict:store(ClientId, [From], Waiting),
+                             pending = [ClientId | Pending]})
+    end.
+
+%% With a zero window the flush message still lands behind the fetches
+%% that are already in the mailbox, so those end up in the same batch.
+schedule_flush(State = #loader_state{flush_scheduled = true}) ->
+    State;
+schedule_flush(State) ->
+    case rabbit_mqtt_util:env(acl_batch_window) of
+        Ms when is_integer(Ms), Ms > 0 -> erlang:send_after(Ms, self(), flush);
+        _                              -> self() ! flush
+    end,
+    State#loader_state{flush_scheduled = true}.
+
+start_batch(Callers, State = #loader_state{batches     = Batches,
+                                            round_trips = RoundTrips}) ->
+    Self = self(),
+    ClientIds = [ClientId || {ClientId, _} <- Callers],
+    {Pid, MRef} = spawn_monitor(fun () -> fetch_batch(Self, ClientIds) end),
+    TRef = case acl_timeout() of
+               infinity -> undefined;
+               Ms       -> erlang:send_after(Ms, self(), {batch_timeout, Pid})
+           end,
+    State#loader_state{batches     = dict:store(Pid, {MRef, TRef, Callers, now_ms()},
+                                                Batches),
+                       round_trips = RoundTrips + 1}.
+
+acl_timeout() ->
+    case rabbit_mqtt_util:env(acl_timeout) of
+        infinity                      -> infinity;
+        Ms when is_integer(Ms), Ms > 0 -> Ms;
+        Other                          -> exit({invalid_acl_timeout, Other})
+    end.
+
+cancel_timer(undefined) -> ok;
+cancel_timer(TRef)      -> erlang:cancel_timer(TRef).
+
+%% A pipeline that failed as a whole (connection refused, closed...)
+%% counts against redis, a single key of the wrong type does not.
+outcome(Results, Started) ->
+    case lists:all(fun ({_, {error, _}}) -> true;
+                       (_)               -> false
+                   end, Results) of
+        true  -> error;
+        false -> {ok, now_ms() - Started}
+    end.
+
+fail(Callers, Reason) ->
+    rabbit_mqtt_acl_metrics:incr({redis_errors, error_label(Reason)}, length(Callers)),
+    reply([{ClientId, {error, Reason}} || {ClientId, _} <- Callers], Callers).
+
+error_label(timeout)      -> timeout;
+error_label(circuit_open) -> circuit_open;
+error_label(_)            -> crash.
+
+%% The generations are read before redis is asked, see
+%% rabbit_mqtt_acl_cache:insert/3.
+fetch_batch(Loader, ClientIds) ->
+    Generations = [rabbit_mqtt_acl_cache:generation(ClientId) || ClientId <- ClientIds],
+    Results = rabbit_mqtt_acl_redis:query_acls(ClientIds),
+    [ok = rabbit_mqtt_acl_cache:insert(ClientId, Acl, Generation)
+     || {{ClientId, {ok, _} = Acl}, Generation} <- lists:zip(Results, Generations)],
+    Loader ! {fetched, self(), Results}.
+
+reply(Results, Callers) ->
+    [gen_server:reply(From, Acl)
+     || {ClientId, Acl} <- Results,
+        {_, Froms} <- [lists:keyfind(ClientId, 1, Callers)],
+        From <- Froms],
+    ok.
+
+shards() ->
+    case rabbit_mqtt_util:env(acl_loader_shards) of
+        N when is_integer(N), N > 0 -> N;
+        _                           -> erlang:system_info(schedulers)
+    end.
+
+shard_for(ClientId) ->
+    name(erlang:phash2(ClientId, shards()) + 1).
+
+name(Shard) ->
+    list_to_atom(atom_to_list(?MODULE) ++ "_" ++ integer_to_list(Shard)).
+
+now_ms() ->
+    time_compat:monotonic_time(milli_seconds).
@@ -0,0 +1,250 @@
+-module(rabbit_mqtt_acl_metrics).
+
+-behaviour(gen_server).
+
+-include("rabbit_mqtt.hrl").
+
+-export([start_link/0, incr/1, incr/2, observe/2, sample_log/0,
+         info/0, format/0]).
+
+-export([init/1, handle_call/3, handle_cast/2, handle_info/2,
+         terminate/2, code_change/3]).
+
+%% Counters and latency histograms of the ACL subsystem.
+%%
+%% Everything lives in one public table updated in place by the
+%% connection, loader and worker processes with ets:update_counter/3,
+%% which is the closest this Erlang release gets to counters/atomics.
+%% A histogram is a row {Name, Count, Sum, Bucket0, ...} where bucket N
+%% counts the samples of more than 2^(N-1) and at most 2^N microseconds,
+%% so recording a sample is one atomic update of one row.
+%%
+%% So that processes on different schedulers do not all update the same
+%% rows, every counter and histogram has a row per scheduler, keyed
+%% {Key, SchedulerId}, and info/0 adds them up.
+%%
+%% This process owns the table, emits an mqtt_acl_metrics event every
+%% acl_metrics_interval milliseconds and, if acl_metrics_listener is a
+%% port, serves the metrics in the Prometheus text format there.
+
+-record(metrics_state, {timer,
+                        listener}).
+
+-define(TABLE, ?MODULE).
+-define(BUCKETS, 32).
+-define(HISTOGRAMS, [check, redis_rtt, pool_wait]).
+-define(ACCEPT_RETRY, 1000).
+
+%%----------------------------------------------------------------------------
+
+start_link() ->
+    gen_server:start_link({local, ?MODULE}, ?MODULE, [], []).
+
+incr(Key) ->
+    incr(Key, 1).
+
+incr(Key, N) ->
+    Stripe = stripe(Key),
+    case catch ets:update_counter(?TABLE, Stripe, N) of
+        {'EXIT', {badarg, _}} -> catch ets:insert_new(?TABLE, {Stripe, 0}),
+                                 catch ets:update_counter(?TABLE, Stripe, N),
+                                 ok;
+        _                     -> ok
+    end.
+
+%% Records a sample, in microseconds, of one of ?HISTOGRAMS.
+observe(Histogram, Micros) ->
+    catch ets:update_counter(?TABLE, stripe(Histogram),
+                             [{2, 1}, {3, Micros}, {4 + bucket(Micros), 1}]),
+    ok.
+
+%% true for one in acl_log_sample_rate calls (per scheduler), to keep
+%% per message debug logging from formatting (and allocating) on every
+%% message.
+sample_log() ->
+    case rabbit_mqtt_util:env(acl_log_sample_rate) of
+        Rate when is_integer(Rate), Rate > 1 ->
+            case catch ets:update_counter(?TABLE, stripe(log_sample),
+                                          {2, 1, Rate - 1, 0}) of
+                0 -> true;
+                _ -> false
+            end;
+        _ ->
+            true
+    end.
+
+info() ->
+    Rows = [{Key, Row} || Row <- ets:tab2list(?TABLE),
+                          {Key, _SchedulerId} <- [element(1, Row)],
+                          Key =/= log_sample],
+    {Histograms, Counters} =
+        lists:partition(fun ({Key, _}) -> lists:member(Key, ?HISTOGRAMS) end, Rows),
+    [{counters,   lists:sort(sum([{Key, N} || {Key, {_, N}} <- Counters],
+                                 fun erlang:'+'/2))},
+     {histograms, [{Name, histogram(Row)}
+                   || {Name, Row} <- sum(Histograms, fun add_rows/2)]},
+     {cache,      rabbit_mqtt_acl_cache:info()},
+     {loader,     rabbit_mqtt_acl_loader:info()}].
+
+%% The Prometheus text exposition of info/0.
+format() ->
+    Info = info(),
+    [[format_counter(Key, N) || {Key, N} <- proplists:get_value(counters, Info)],
+     [format_histogram(Name, H) || {Name, H} <- proplists:get_value(histograms, Info)],
+     [format_gauge(<<"cache_", (atom_to_binary(Key, latin1))/binary>>, N)
+      || {Key, N} <- proplists:get_value(cache, Info), is_integer(N)],
+     [format_gauge(<<"loader_", (atom_to_binary(Key, latin1))/binary>>, N)
+      || {Key, N} <- proplists:get_value(loader, Info)]].
+
+%%----------------------------------------------------------------------------
+
+init([]) ->
+    ?TABLE = ets:new(?TABLE, [set, public, named_table,
+                              {write_concurrency, true}]),
+    Stripes = lists:seq(1, erlang:system_info(schedulers)),
+    true = ets:insert(?TABLE, [list_to_tuple([{Name, S}, 0, 0 | lists:duplicate(?BUCKETS, 0)])
+                               || Name <- ?HISTOGRAMS, S <- Stripes]),
+    true = ets:insert(?TABLE, [{{log_sample, S}, 0} || S <- Stripes]),
+    Listener = case rabbit_mqtt_util:env(acl_metrics_listener) of
+                   Port when is_integer(Port) -> start_listener(Port);
+                   _                          -> undefined
+               end,
+    {ok, #metrics_state{timer = schedule_emit(), listener = Listener}}.
+
+handle_call(Msg, _From, State) ->
+    {stop, {unhandled_call, Msg}, State}.
+
+handle_cast(Msg, State) ->
+    {stop, {unhandled_cast, Msg}, State}.
+
+handle_info(emit, State) ->
+    rabbit_event:notify(mqtt_acl_metrics, info()),
+    {noreply, State#metrics_state{timer = schedule_emit()}};
+
+handle_info(Info, State) ->
+    {stop, {unhandled_info, Info}, State}.
+
+terminate(_Reason, #metrics_state{listener = undefined}) ->
+    ok;
+terminate(_Reason, #metrics_state{listener = LSock}) ->
+    gen_tcp:close(LSock).
+
+code_change(_OldVsn, State, _Extra) ->
+    {ok, State}.
+
+%%----------------------------------------------------------------------------
+
+schedule_emit() ->
+    case rabbit_mqtt_util:env(acl_metrics_interval) of
+        Ms when is_integer(Ms), Ms > 0 -> erlang:send_after(Ms, self(), emit);
+        _                              -> undefined
+    end.
+
+bucket(Micros) when Micros =< 1 ->
+    0;
+bucket(Micros) ->
+    erlang:min(?BUCKETS - 1, bits(Micros - 1, 0)).
+
+bits(0, N) -> N;
+bits(V, N) -> bits(V bsr 1, N + 1).
+
+stripe(Key) ->
+    {Key, erlang:system_info(scheduler_id)}.
+
+%% Adds up the values of equal keys in a [{Key, Value}] list.
+sum(KVs, Add) ->
+    dict:to_list(lists:foldl(fun ({Key, V}, D) ->
+                                     dict:update(Key, fun (V0) -> Add(V0, V) end, V, D)
+                             end, dict:new(), KVs)).
+
+%% Element by element, apart from the key.
+add_rows(Row1, Row2) ->
+    [Key | Values1] = tuple_to_list(Row1),
+    [_   | Values2] = tuple_to_list(Row2),
+    list_to_tuple([Key | lists:zipwith(fun erlang:'+'/2, Values1, Values2)]).
+
+histogram(Row) ->
+    [_Name, Count, Sum | Buckets] = tuple_to_list(Row),
+    [{count,   Count},
+     {sum,     Sum},
+     {buckets, lists:zip([1 bsl N || N <- lists:seq(0, ?BUCKETS - 1)], Buckets)}].
+
+%% Counter keys are either an atom or {Group, Label}, e.g.
+%% {checks, allow} -> rabbitmq_mqtt_acl_checks_total{result="allow"}
+format_counter({Group, Label}, N) ->
+    [<<"rabbitmq_mqtt_acl_">>, atom_to_binary(Group, latin1), <<"_total{">>,
+     label_name(Group), <<"=\"">>, to_binary(Label), <<"\"} ">>,
+     integer_to_binary(N), <<"\n">>];
+format_counter(Key, N) ->
+    [<<"rabbitmq_mqtt_acl_">>, atom_to_binary(Key, latin1), <<"_total ">>,
+     integer_to_binary(N), <<"\n">>].
+
+format_gauge(Name, N) ->
+    [<<"rabbitmq_mqtt_acl_">>, Name, <<" ">>, integer_to_binary(N), <<"\n">>].
+
+format_histogram(Name, H) ->
+    Prefix = [<<"rabbitmq_mqtt_acl_">>, atom_to_binary(Name, latin1),
+              <<"_microseconds">>],
+    {Lines, _} = lists:mapfoldl(
+                   fun ({Le, Count}, Acc) ->
+                           {[Prefix, <<"_bucket{le=\"">>, integer_to_binary(Le),
+                             <<"\"} ">>, integer_to_binary(Acc + Count), <<"\n">>],
+                            Acc + Count}
+                   end, 0, proplists:get_value(buckets, H)),
+    Count = integer_to_binary(proplists:get_value(count, H)),
+    [Lines,
+     Prefix, <<"_bucket{le=\"+Inf\"} ">>, Count, <<"\n">>,
+     Prefix, <<"_sum ">>, integer_to_binary(proplists:get_value(sum, H)), <<"\n">>,
+     Prefix, <<"_count ">>, Count, <<"\n">>].
+
+label_name(checks)       -> <<"result">>;
+label_name(redis_errors) -> <<"reason">>;
+label_name(_)            -> <<"label">>.
+
+to_binary(Label) when is_atom(Label) -> atom_to_binary(Label, latin1);
+to_binary(Label)                     -> rabbit_data_coercion:to_binary(Label).
+
+%% A deliberately small HTTP/1.0 responder: whatever is asked for, the
+%% answer is the current metrics.
+start_listener(Port) ->
+    {ok, LSock} = gen_tcp:listen(Port, [binary, {packet, http_bin},
+                                        {active, false}, {reuseaddr, true}]),
+    spawn_link(fun () -> accept(LSock) end),
+    LSock.
+
+%% The acceptor is linked to this process, which is under the one_for_all
+%% MQTT supervisor, so accept errors (e.g. emfile) must not crash it.
+accept(LSock) ->
+    case gen_tcp:accept(LSock) of
+        {ok, Sock} ->
+            Pid = spawn(fun () -> receive go -> serve(Sock) end end),
+            case gen_tcp:controlling_process(Sock, Pid) of
+                ok         -> Pid ! go;
+                {error, _} -> exit(Pid, kill),
+                              gen_tcp:close(Sock)
+            end,
+            accept(LSock);
+        {error, closed} ->
+            ok;
+        {error, Reason} ->
+            rabbit_log:warning("MQTT acl metrics listener failed to accept: ~p~n",
+                               [Reason]),
+            timer:sleep(?ACCEPT_RETRY),
+            accept(LSock)
+    end.
+
+serve(Sock) ->
+    case gen_tcp:recv(Sock, 0, 5000) of
+        {ok, http_eoh} ->
+            Body = iolist_to_binary(format()),
+            gen_tcp:send(Sock, [<<"HTTP/1.0 200 OK\r\n"
+                                  "Content-Type: text/plain; version=0.0.4\r\n"
+                                  "Content-Length: ">>,
+                                integer_to_binary(byte_size(Body)),
+                                <<"\r\n\r\n">>, Body]),
+            gen_tcp:close(Sock);
+        {ok, _RequestOrHeader} ->
+            serve(Sock);
+        {error, _} ->
+            gen_tcp:close(Sock)
+    end.
@@ -4,89 +4,362 @@
 
 -include("rabbit_mqtt.hrl").
 
--export([start_link/0,check_acl/3]).
+-export([start_link/0,fetch_acl/1,prefetch_acl/1,await_acl/1,fallback_acl/2,
+         query_acls/1,check_acl/3,redis_nodes/0,info/0]).
+
+%% for testing purposes
+-export([compile_acl/1, build_ring/2, locate/2]).
 
 -export([init/1, handle_call/3, handle_cast/2, handle_info/2,
          terminate/2, code_change/3]).
 
--record(acl_state, {acl_cmd}).
+%% The rules may be spread over several redis nodes ("shards"). Each
+%% client id belongs to one of them, picked on a consistent hash ring
+%% holding RING_POINTS points per unit of node weight, so that adding
+%% or removing a node only moves the clients of the ring segments it
+%% takes over or gives back. There is one connection pool per shard,
+%% and shards failing a periodic PING are failed fast instead of being
+%% waited for.
+
+-record(acl_state, {shards,
+                    timer}).
+
+%% A compiled rule set is a trie of topic filter levels. Each node keeps
+%% the access bits of the rules ending there, of the '#' rule below it,
+%% and a separate child for '+', so that a match only walks the levels
+%% of the topic instead of every rule.
+-record(acl_node, {access   = 0,
+                   hash     = 0,
+                   plus,
+                   children = gb_trees:empty()}).
+
+-define(ACCESS_SUBSCRIBE, 1).
+-define(ACCESS_PUBLISH,   2).
+
+-define(RING_TABLE,   rabbit_mqtt_acl_redis_ring).
+-define(SHARDS_TABLE, rabbit_mqtt_acl_redis_shards).
 
--define(REDIS_POOL_NAME,mqtt_redis).
+-define(RING_POINTS, 128).
+-define(RING_SIZE, 4294967296).
+-define(HEALTH_CHECK_INTERVAL, 5000).
+-define(HEALTH_CHECK_TIMEOUT, 1000).
 
 %%----------------------------------------------------------------------------
 start_link() ->
     gen_server:start_link({local, ?MODULE}, ?MODULE,[],[]).      
 
-check_acl(ClientId, PubSub,Topic) ->
-    gen_server:call(?MODULE, {check_acl, ClientId, PubSub, Topic}, infinity).  
+%% Fetches the rule set of a client from Redis and compiles it into a
+%% snapshot that check_acl/3 can evaluate locally, so that a connection
+%% only pays a Redis round trip when it (re)loads its rules.
+%%
+%% Snapshots are shared node-wide through rabbit_mqtt_acl_cache, redis
+%% is only asked on a cache miss. Misses go through the sharded
+%% rabbit_mqtt_acl_loader processes, which answer concurrent misses for
+%% one client with a single query and pipeline misses of different
+%% clients over one pool connection.
+fetch_acl(ClientId) ->
+    case rabbit_mqtt_acl_cache:lookup(ClientId) of
+        {ok, Acl} -> Acl;
+        not_found -> rabbit_mqtt_acl_loader:fetch(ClientId)
+    end.
+
+%% Starts fetching the rules of a client without waiting for them, so
+%% that the round trip overlaps with other work; await_acl/1 returns
+%% what fetch_acl/1 would have.
+prefetch_acl(ClientId) ->
+    case rabbit_mqtt_acl_cache:lookup(ClientId) of
+        {ok, Acl} -> {done, Acl};
+        not_found -> {pending, rabbit_mqtt_acl_loader:fetch_async(ClientId)}
+    end.
+
+await_acl({done, Acl}) ->
+    Acl;
+await_acl({pending, MRef}) ->
+    rabbit_mqtt_acl_loader:await(MRef).
+
+%% What to check against when the rules of a client cannot be fetched
+%% and its connection has no snapshot of its own: the last rules seen on
+%% this node, or else whatever acl_failure_policy says.
+fallback_acl(ClientId, Reason) ->
+    case rabbit_mqtt_acl_cache:lookup_stale(ClientId) of
+        {ok, {ok, _} = Acl} ->
+            rabbit_log:warning("MQTT using stale acl for client ~p: ~p~n",
+                               [ClientId, Reason]),
+            Acl;
+        _ ->
+            case rabbit_mqtt_util:env(acl_failure_policy) of
+                allow -> rabbit_log:warning("MQTT allowing client ~p without acl: ~p~n",
+                                            [ClientId, Reason]),
+                         {ok, compile_acl([<<"#">>, <<"3">>])};
+                _     -> {error, Reason}
+            end
+    end.
+
+%% Fetches the rules of several clients with one pipelined round trip
+%% per shard, the shards being queried in parallel.
+query_acls(ClientIds) ->
+    {ok, AclCmd} = application:get_env(?APP, acl_cmd),
+    case group_by_shard(ClientIds) of
+        [{Shard, Ids}] ->
+            query_shard(Shard, Ids, AclCmd);
+        Groups ->
+            Self = self(),
+            Pids = [spawn_link(fun () ->
+                                       Self ! {self(), query_shard(Shard, Ids, AclCmd)}
+                               end) || {Shard, Ids} <- Groups],
+            lists:append([receive {Pid, Results} -> Results end || Pid <- Pids])
+    end.
+
+query_shard(Shard, ClientIds, AclCmd) ->
+    case ets:lookup(?SHARDS_TABLE, Shard) of
+        [{Shard, Pool, _Node, up}] ->
+            Cmds = [acl_cmd(AclCmd, ClientId) || ClientId <- ClientIds],
+            case rabbit_mqtt_acl_metrics:sample_log() of
+                true  -> rabbit_log:debug("MQTT fetch acl from ~p: ~p~n",[Pool, Cmds]);
+                false -> ok
+            end,
+            case pipeline(Pool, Cmds) of
+                Replies when is_list(Replies) ->
+                    lists:zipwith(fun (ClientId, Reply) ->
+                                          {ClientId, acl_reply(Reply)}
+                                  end, ClientIds, Replies);
+                {error, Reason} ->
+                    rabbit_mqtt_acl_metrics:incr({redis_errors, connection}),
+                    rabbit_log:error("MQTT fetch acl from ~p failed: ~p~n",[Pool, Reason]),
+                    [{ClientId, {error, Reason}} || ClientId <- ClientIds]
+            end;
+        [{Shard, _Pool, Node, down}] ->
+            rabbit_mqtt_acl_metrics:incr({redis_errors, redis_down}),
+            [{ClientId, {error, {redis_down, Node}}} || ClientId <- ClientIds]
+    end.
+
+%% What eredis_pool:qp/2 does, but timing the wait for a pool
+%% connection and the round trip separately.
+pipeline(Pool, Cmds) ->
+    T0 = time_compat:monotonic_time(micro_seconds),
+    Worker = poolboy:checkout(Pool),
+    T1 = time_compat:monotonic_time(micro_seconds),
+    rabbit_mqtt_acl_metrics:observe(pool_wait, T1 - T0),
+    try
+        eredis:qp(Worker, Cmds)
+    after
+        rabbit_mqtt_acl_metrics:observe(
+          redis_rtt, time_compat:monotonic_time(micro_seconds) - T1),
+        poolboy:checkin(Pool, Worker)
+    end.
+
+group_by_shard(ClientIds) ->
+    dict:to_list(
+      lists:foldl(fun (ClientId, Groups) ->
+                          dict:append(locate(?RING_TABLE, ClientId), ClientId, Groups)
+                  end, dict:new(), ClientIds)).
+
+%% The configured redis nodes as [{Host, Port, Options}]. Either a
+%% single node, as in
+%%   {redis, [{pool_size, 50}, {host, "127.0.0.1"}, {port, 6379}]}
+%% or several, as in
+%%   {redis, [{pool_size, 50},
+%%            {nodes, [[{host, "10.0.0.1"}, {port, 6379}],
+%%                     [{host, "10.0.0.2"}, {port, 6379}, {weight, 2}]]}]}
+%% where pool_size, password and database apply to every node unless
+%% the node overrides them.
+redis_nodes() ->
+    {ok, RedisArgs} = application:get_env(?APP, redis),
+    [{proplists:get_value(host, Node, "127.0.0.1"),
+      proplists:get_value(port, Node, 6379),
+      Node ++ RedisArgs}
+     || Node <- proplists:get_value(nodes, RedisArgs, [RedisArgs])].
+
+info() ->
+    [[{shard, Shard}, {pool, Pool}, {node, Node}, {status, Status}]
+     || {Shard, Pool, Node, Status} <- lists:sort(ets:tab2list(?SHARDS_TABLE))].
+
+%%result example of eredis:q will be
+%%{ok,[<<"topic1">>,<<"1">>,<<"topic2">>,<<"2">>,<<"topic3">>,<<"3">>]}
+acl_reply({ok, Rules}) ->
+    {ok, compile_acl(Rules)};
+acl_reply({error, Reason}) ->
+    rabbit_mqtt_acl_metrics:incr({redis_errors, reply}),
+    rabbit_log:error("MQTT fetch acl error: ~p~n",[Reason]),
+    {error, Reason}.
+
+check_acl({ok, []}, _PubSub, _Topic) ->
+    {deny, "rule not set"};
+check_acl({ok, Trie}, PubSub, Topic) ->
+    case match(PubSub, Topic, Trie) of
+        allow   -> allow;
+        nomatch -> {deny, "rule not match"}
+    end;
+check_acl({error, Reason}, _PubSub, _Topic) ->
+    {deny, Reason}.
 
 %%----------------------------------------------------------------------------
 
 init([]) ->
-    {ok,RedisArgs} = application:get_env(?APP,redis),
-    {ok,AclCmd} = application:get_env(?APP,acl_cmd),
-    %%io:fwrite("get redis:~p~n",[application:get_env(?APP,redis)]),
-    %%io:fwrite("get acl_cmd:~p~n",[application:get_env(?APP,acl_cmd)]),
-
+    process_flag(trap_exit, true),
+    Nodes = redis_nodes(),
+    ?RING_TABLE = ets:new(?RING_TABLE, [ordered_set, protected, named_table,
+                                        {read_concurrency, true}]),
+    ?SHARDS_TABLE = ets:new(?SHARDS_TABLE, [set, protected, named_table,
+                                            {read_concurrency, true}]),
+    ok = build_ring(?RING_TABLE, [{node_id(Host, Port), proplists:get_value(weight, Opts, 1)}
+                                  || {Host, Port, Opts} <- Nodes]),
     eredis_pool:start(),
-    {ok,_} = eredis_pool:create_pool(?REDIS_POOL_NAME,
-                            proplists:get_value(pool_size, RedisArgs, 50),
-                            proplists:get_value(host, RedisArgs, "127.0.0.1"),
-                            proplists:get_value(port, RedisArgs, 6379)),
-    {ok, #acl_state{acl_cmd = AclCmd}}.
+    Shards = lists:zip(lists:seq(1, length(Nodes)), Nodes),
+    [start_pool(Shard, Node) || {Shard, Node} <- Shards],
+    {ok, #acl_state{shards = [Shard || {Shard, _} <- Shards],
+                    timer  = schedule_health_check()}}.
 
 %%----------------------------------------------------------------------------    
 
-handle_call({check_acl, ClientId, PubSub, Topic}, _From,
-            State = #acl_state{acl_cmd     = AclCmd}) ->
-    Cmd = string:tokens(replvar(AclCmd, ClientId), " "),
-    rabbit_log:debug("MQTT check acl ~p: ~p,~p,~p~n",[ClientId,PubSub,Topic,Cmd]),
-    %%io:fwrite("check acl,~p,~p,~p,~p,~p~n",[ClientId,PubSub,Topic,AclCmd,Cmd]),
-    case eredis_pool:q(?REDIS_POOL_NAME, Cmd) of
-        %%result example of eredis:q will be
-        %%{ok,[<<"topic1">>,<<"1">>,<<"topic2">>,<<"2">>,<<"topic3">>,<<"3">>]}
-        {ok, []}         -> {reply,{deny,"rule not set"},State};
-        {ok, Rules}      -> case match(PubSub, Topic, Rules) of
-                                allow   -> {reply,allow,State};
-                                nomatch -> {reply,{deny,"rule not match"},State}
-                            end;
-        {error, Reason} -> rabbit_log:error("MQTT check acl error: ~p~n",[Reason]),
-                           %%io:fwrite("Redis check_acl error: ~p~n", [Reason]),
-                           {reply,{deny,Reason},State}
+handle_call(Msg, _From, State) ->
+    {stop, {unhandled_call, Msg}, State}.
 
-    end.
+handle_info(health_check, State = #acl_state{shards = Shards}) ->
+    [health_check(Shard) || Shard <- Shards],
+    {noreply, State#acl_state{timer = schedule_health_check()}};
 
 handle_info({'EXIT', _, {shutdown, closed}}, State) ->
-    {stop, {shutdown, closed}, State}.
+    {stop, {shutdown, closed}, State};
+
+handle_info({'EXIT', _, Reason}, State) ->
+    {stop, Reason, State}.
 
 handle_cast(Msg, State) ->
     {stop, {unhandled_cast, Msg}, State}.
 
-terminate(_Reason, _State) ->
+terminate(_Reason, #acl_state{shards = Shards}) ->
+    [catch eredis_pool:delete_pool(pool_name(Shard)) || Shard <- Shards],
     ok.
 
 code_change(_OldVsn, State, _Extra) ->
     {ok, State}.
 
-replvar(Cmd, ClientId) ->
-    re:replace(Cmd, "~c", ClientId, [{return, list}]).
+start_pool(Shard, {Host, Port, Opts}) ->
+    Pool = pool_name(Shard),
+    {ok, _} = eredis_pool:create_pool(Pool,
+                                      proplists:get_value(pool_size, Opts, 50),
+                                      Host, Port,
+                                      proplists:get_value(database, Opts, 0),
+                                      proplists:get_value(password, Opts, "")),
+    true = ets:insert(?SHARDS_TABLE, {Shard, Pool, node_id(Host, Port), up}),
+    ok.
+
+pool_name(Shard) ->
+    list_to_atom("mqtt_redis_" ++ integer_to_list(Shard)).
+
+node_id(Host, Port) ->
+    rabbit_misc:format("~s:~b", [Host, Port]).
+
+schedule_health_check() ->
+    erlang:send_after(?HEALTH_CHECK_INTERVAL, self(), health_check).
+
+health_check(Shard) ->
+    [{Shard, Pool, Node, Status}] = ets:lookup(?SHARDS_TABLE, Shard),
+    Status1 = case catch eredis_pool:q(Pool, [<<"PING">>], ?HEALTH_CHECK_TIMEOUT) of
+                  {ok, <<"PONG">>} -> up;
+                  _                -> down
+              end,
+    case Status1 of
+        Status -> ok;
+        up     -> rabbit_log:info("MQTT acl redis ~s is back up~n", [Node]);
+        down   -> rabbit_log:warning("MQTT acl redis ~s is down~n", [Node])
+    end,
+    true = ets:insert(?SHARDS_TABLE, {Shard, Pool, Node, Status1}),
+    ok.
+
+%% Nodes are [{NodeId, Weight}], shards are numbered in that order.
+build_ring(Table, Nodes) ->
+    true = ets:insert(Table,
+                      [{erlang:phash2({NodeId, I}, ?RING_SIZE), Shard}
+                       || {Shard, {NodeId, Weight}} <-
+                              lists:zip(lists:seq(1, length(Nodes)), Nodes),
+                          I <- lists:seq(1, ?RING_POINTS * Weight)]),
+    ok.
+
+%% The shard of the first point at or after the hash of the client id,
+%% wrapping around at the end of the ring.
+locate(Table, ClientId) ->
+    Hash = erlang:phash2(ClientId, ?RING_SIZE),
+    case ets:lookup(Table, Hash) of
+        [{_, Shard}] -> Shard;
+        []           -> case ets:next(Table, Hash) of
+                            '$end_of_table' -> ets:lookup_element(Table, ets:first(Table), 2);
+                            Point           -> ets:lookup_element(Table, Point, 2)
+                        end
+    end.
+
+%% "HGETALL mqtt_acl:~c" -> [<<"HGETALL">>, <<"mqtt_acl:00100001">>]
+acl_cmd(AclCmd, ClientId) ->
+    [binary:replace(list_to_binary(Token), <<"~c">>, ClientId, [global])
+     || Token <- string:tokens(AclCmd, " ")].
+
+%% Redis replies with a flat [Filter, Access, ...] list of binaries,
+%% e.g. [<<"sensors/+/temp">>, <<"2">>, <<"cmd/#">>, <<"1">>].
+compile_acl([]) ->
+    [];
+compile_acl(Rules) ->
+    compile_acl(Rules, #acl_node{}).
+
+compile_acl([], Trie) ->
+    Trie;
+compile_acl([Filter, Access | Rules], Trie) ->
+    compile_acl(Rules, insert(words(Filter), binary_to_integer(Access), Trie)).
+
+insert([], Access, Node = #acl_node{access = A}) ->
+    Node#acl_node{access = A bor Access};
+insert([<<"#">>], Access, Node = #acl_node{hash = H}) ->
+    Node#acl_node{hash = H bor Access};
+insert([<<"+">> | Words], Access, Node = #acl_node{plus = Plus}) ->
+    Node#acl_node{plus = insert(Words, Access, node_or_new(Plus))};
+insert([Word | Words], Access, Node = #acl_node{children = Children}) ->
+    Child = case gb_trees:lookup(Word, Children) of
+                {value, C} -> C;
+                none       -> #acl_node{}
+            end,
+    Node#acl_node{children = gb_trees:enter(Word, insert(Words, Access, Child),
+                                            Children)}.
+
+node_or_new(undefined) -> #acl_node{};
+node_or_new(Node)      -> Node.
 
-match(_PubSub, _Topic, []) ->
-    nomatch;
-match(PubSub, Topic, [Filter, Access | Rules]) ->
-    case {match_topic(Topic, Filter), match_access(PubSub, b2i(Access))} of
-        {true, true} -> allow;
-        {_, _} -> match(PubSub, Topic, Rules)
+match(PubSub, Topic, Trie) ->
+    case (match_root(words(Topic), Trie) band access_bit(PubSub)) > 0 of
+        true  -> allow;
+        false -> nomatch
     end.
 
-match_topic(Topic, Filter) ->
-    %%emqttd_topic:match(Topic, Filter).
-    string:equal(Topic,binary_to_list(Filter)).
+%% Wildcards at the first level do not match topics starting with '$'.
+match_root([<<$$, _/binary>> = Word | Words], #acl_node{children = Children}) ->
+    case gb_trees:lookup(Word, Children) of
+        {value, Child} -> match_words(Words, Child);
+        none           -> 0
+    end;
+match_root(Words, Trie) ->
+    match_words(Words, Trie).
 
-match_access(subscribe, Access) ->
-    (1 band Access) > 0;
-match_access(publish, Access) ->
-    (2 band Access) > 0.
-b2i(Bin) -> list_to_integer(binary_to_list(Bin)).
+%% Returns the union of the access bits of all rules matching the topic.
+%% A subscription filter may itself contain wildcards: a '+' level is
+%% only covered by a '+' or '#' rule, and a '#' level only by a '#' rule.
+match_words([], #acl_node{access = A, hash = H}) ->
+    A bor H;
+match_words([<<"#">>], #acl_node{hash = H}) ->
+    H;
+match_words([Word | Words], #acl_node{hash     = H,
+                                      plus     = Plus,
+                                      children = Children}) ->
+    Exact = case gb_trees:lookup(Word, Children) of
+                {value, Child} -> match_words(Words, Child);
+                none           -> 0
+            end,
+    Wild = case Plus of
+               undefined -> 0;
+               _         -> match_words(Words, Plus)
+           end,
+    H bor Exact bor Wild.
 
+words(Topic) ->
+    binary:split(Topic, <<"/">>, [global]).
 
+access_bit(subscribe) -> ?ACCESS_SUBSCRIBE;
+access_bit(publish)   -> ?ACCESS_PUBLISH.
@@ -0,0 +1,251 @@
+%% The contents of this file are subject to the Mozilla Public License
+%% Version 1.1 (the "License"); you may not use this file except in
+%% compliance with the License. You may obtain a copy of the License
+%% at http://www.mozilla.org/MPL/
+%%
+%% Software distributed under the License is distributed on an "AS IS"
+%% basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+%% the License for the specific language governing rights and
+%% limitations under the License.
+%%
+%% The Original Code is RabbitMQ.
+%%
+%% The Initial Developer of the Original Code is GoPivotal, Inc.
+%% Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+%%
+
+-module(rabbit_mqtt_admission).
+
+-behaviour(gen_server).
+
+-include("rabbit_mqtt.hrl").
+
+-export([start_link/0, admit/0, done/1, info/0]).
+
+-export([init/1, handle_call/3, handle_cast/2, handle_info/2,
+         terminate/2, code_change/3]).
+
+%% Admission control for CONNECTs. A connection asks to be admitted
+%% once the CONNECT frame checks out and before it allocates anything
+%% on the broker (AMQP connection, channel, queues), and says when it
+%% is done setting up. At most max_concurrent connections set up at a
+%% time and they start at no more than rate a second, with bursts of
+%% up to burst. The others wait in line, first come first served, for
+%% up to queue_timeout milliseconds; those that would make the line
+%% longer than max_queued, or that time out in it, are turned away
+%% and get a "server unavailable" CONNACK.
+%%
+%% Connections that go away while set up or in line are noticed
+%% through their monitor, so a slot is never lost.
+
+-record(admission_state, {running,
+                          waiting,
+                          tokens,
+                          refilled_at,
+                          %% {TRef, DueAt} of the pending wake-up, if any
+                          timer,
+                          admitted,
+                          queued,
+                          rejected}).
+
+%%----------------------------------------------------------------------------
+
+start_link() ->
+    gen_server:start_link({local, ?MODULE}, ?MODULE, [], []).
+
+%% Returns {ok, Ticket} to be handed back to done/1, or {error, Reason}.
+admit() ->
+    try
+        gen_server:call(?MODULE, {admit, self()}, infinity)
+    catch
+        %% not running, e.g. in tests of the processor alone
+        exit:{noproc, _} -> {ok, undefined}
+    end.
+
+done(undefined) ->
+    ok;
+done(Ticket) ->
+    gen_server:cast(?MODULE, {done, Ticket}).
+
+info() ->
+    gen_server:call(?MODULE, info, infinity).
+
+%%----------------------------------------------------------------------------
+
+init([]) ->
+    _ = rate(),
+    {ok, #admission_state{running     = gb_sets:empty(),
+                          waiting     = queue:new(),
+                          tokens      = config(burst, 1000),
+                          refilled_at = now_ms(),
+                          timer       = undefined,
+                          admitted    = 0,
+                          queued      = 0,
+                          rejected    = 0}}.
+
+handle_call({admit, Pid}, From, State0) ->
+    State = #admission_state{waiting = Waiting, queued = Queued} = refill(State0),
+    case queue:is_empty(Waiting) andalso can_start(State) of
+        true ->
+            MRef = erlang:monitor(process, Pid),
+            {reply, {ok, MRef}, start(State, MRef)};
+        false ->
+            case queue:len(Waiting) < config(max_queued, 10000) of
+                true  -> Waiter = {From, erlang:monitor(process, Pid),
+                                   now_ms() + config(queue_timeout, 5000)},
+                         {noreply, schedule(State#admission_state{
+                                              waiting = queue:in(Waiter, Waiting),
+                                              queued  = Queued + 1})};
+                false -> {reply, {error, overloaded}, reject(State)}
+            end
+    end;
+
+handle_call(info, _From, State0) ->
+    State = #admission_state{running  = Running,
+                             waiting  = Waiting,
+                             tokens   = Tokens,
+                             admitted = Admitted,
+                             queued   = Queued,
+                             rejected = Rejected} = refill(State0),
+    {reply, [{running,  gb_sets:size(Running)},
+             {waiting,  queue:len(Waiting)},
+             {tokens,   Tokens},
+             {admitted, Admitted},
+             {queued,   Queued},
+             {rejected, Rejected}], State};
+
+handle_call(Msg, _From, State) ->
+    {stop, {unhandled_call, Msg}, State}.
+
+handle_cast({done, Ticket}, State = #admission_state{running = Running}) ->
+    erlang:demonitor(Ticket, [flush]),
+    {noreply, drain(State#admission_state{running = gb_sets:del_element(Ticket, Running)})};
+
+handle_cast(Msg, State) ->
+    {stop, {unhandled_cast, Msg}, State}.
+
+handle_info({'DOWN', MRef, process, _Pid, _Reason},
+            State = #admission_state{running = Running, waiting = Waiting}) ->
+    State1 = case gb_sets:is_element(MRef, Running) of
+                 true  -> State#admission_state{
+                            running = gb_sets:delete(MRef, Running)};
+                 false -> State#admission_state{
+                            waiting = queue:filter(fun ({_, R, _}) -> R =/= MRef end,
+                                                   Waiting)}
+             end,
+    {noreply, drain(State1)};
+
+handle_info({timeout, TRef, drain}, State = #admission_state{timer = {TRef, _}}) ->
+    {noreply, drain(State#admission_state{timer = undefined})};
+handle_info({timeout, _TRef, drain}, State) ->
+    %% cancelled for an earlier one, too late
+    {noreply, State};
+
+handle_info(Info, State) ->
+    {stop, {unhandled_info, Info}, State}.
+
+terminate(_Reason, _State) ->
+    ok.
+
+code_change(_OldVsn, State, _Extra) ->
+    {ok, State}.
+
+%%----------------------------------------------------------------------------
+
+%% Admits from the head of the line as long as there is room, and turns
+%% away those that waited too long.
+drain(State0) ->
+    State = #admission_state{waiting = Waiting} = refill(State0),
+    case queue:out(Waiting) of
+        {empty, _} ->
+            State;
+        {{value, {From, MRef, Deadline}}, Waiting1} ->
+            case {now_ms() >= Deadline, can_start(State)} of
+                {true, _} ->
+                    erlang:demonitor(MRef, [flush]),
+                    gen_server:reply(From, {error, timeout}),
+                    drain(reject(State#admission_state{waiting = Waiting1}));
+                {false, true} ->
+                    gen_server:reply(From, {ok, MRef}),
+                    drain(start(State#admission_state{waiting = Waiting1}, MRef));
+                {false, false} ->
+                    schedule(State)
+            end
+    end.
+
+can_start(#admission_state{running = Running, tokens = Tokens}) ->
+    gb_sets:size(Running) < config(max_concurrent, 128) andalso Tokens >= 1.
+
+start(State = #admission_state{running  = Running,
+                               tokens   = Tokens,
+                               admitted = Admitted}, MRef) ->
+    State#admission_state{running  = gb_sets:add_element(MRef, Running),
+                          tokens   = Tokens - 1,
+                          admitted = Admitted + 1}.
+
+reject(State = #admission_state{rejected = Rejected}) ->
+    State#admission_state{rejected = Rejected + 1}.
+
+refill(State = #admission_state{tokens = Tokens, refilled_at = Then}) ->
+    Now = now_ms(),
+    Burst = config(burst, 1000),
+    case rate() of
+        infinity -> State#admission_state{tokens = Burst, refilled_at = Now};
+        Rate     -> State#admission_state{
+                      tokens      = erlang:min(Burst, Tokens + (Now - Then) * Rate / 1000),
+                      refilled_at = Now}
+    end.
+
+%% Wakes up when the next token is due or the head of the line times
+%% out, whichever comes first; slots freed up by connections that are
+%% done wake us up by themselves. A pending wake-up is kept unless this
+%% one is earlier, e.g. the head was admitted on a freed slot and the
+%% new head waits for a token rather than its deadline.
+schedule(State = #admission_state{waiting = Waiting, tokens = Tokens, timer = Timer}) ->
+    case queue:peek(Waiting) of
+        empty ->
+            State;
+        {value, {_, _, Deadline}} ->
+            Now = now_ms(),
+            UntilToken = case rate() of
+                             Rate when Rate =/= infinity, Tokens < 1 ->
+                                 ceil_ms((1 - Tokens) * 1000 / Rate);
+                             _ ->
+                                 infinity
+                         end,
+            DueAt = Now + erlang:min(UntilToken, erlang:max(0, Deadline - Now)),
+            case Timer of
+                {_, Due} when Due =< DueAt ->
+                    State;
+                _ ->
+                    case Timer of
+                        {TRef, _}  -> erlang:cancel_timer(TRef);
+                        undefined -> ok
+                    end,
+                    TRef1 = erlang:start_timer(DueAt - Now, self(), drain),
+                    State#admission_state{timer = {TRef1, DueAt}}
+            end
+    end.
+
+ceil_ms(Ms) ->
+    T = trunc(Ms),
+    case Ms > T of
+        true  -> T + 1;
+        false -> T
+    end.
+
+rate() ->
+    case config(rate, 1000) of
+        infinity                            -> infinity;
+        Rate when is_number(Rate), Rate > 0 -> Rate;
+        Other                               -> exit({invalid_connect_admission, {rate, Other}})
+    end.
+
+config(Key, Default) ->
+    case rabbit_mqtt_util:env(connect_admission) of
+        Opts when is_list(Opts) -> proplists:get_value(Key, Opts, Default);
+        _                       -> Default
+    end.
+
+now_ms() ->
+    time_compat:monotonic_time(milli_seconds).
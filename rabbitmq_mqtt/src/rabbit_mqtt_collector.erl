@@ -18,57 +18,77 @@
 
 -behaviour(gen_server).
 
--export([start_link/0, register/2, unregister/2]).
+-export([start_link/1, register/2, unregister/2, lookup/1, stripes/0, name/1]).
 
 -export([init/1, handle_call/3, handle_cast/2, handle_info/2,
          terminate/2, code_change/3]).
 
--record(state, {client_ids}).
+%% Registry of the connected client ids. Client ids are striped over
+%% one collector per scheduler by hash; each stripe owns a table of
+%% {ClientId, Pid, MRef} that anyone can read, so lookup/1 never
+%% involves a process, and keeps a monitor ref -> client id index so a
+%% disconnect is cleaned up without scanning the whole registry.
 
--define(SERVER, ?MODULE).
+-record(state, {table, monitors}).
 
 %%----------------------------------------------------------------------------
 
-start_link() ->
-    gen_server:start_link({local, ?SERVER}, ?MODULE, [], []).
+start_link(Stripe) ->
+    gen_server:start_link({local, name(Stripe)}, ?MODULE, [Stripe], []).
 
 register(ClientId, Pid) ->
-    gen_server:call(rabbit_mqtt_collector, {register, ClientId, Pid}, infinity).
+    gen_server:call(stripe_for(ClientId), {register, ClientId, Pid}, infinity).
 
 unregister(ClientId, Pid) ->
-    gen_server:call(rabbit_mqtt_collector, {unregister, ClientId, Pid}, infinity).
+    gen_server:cast(stripe_for(ClientId), {unregister, ClientId, Pid}).
+
+lookup(ClientId) ->
+    case ets:lookup(stripe_for(ClientId), ClientId) of
+        [{_, Pid, _MRef}] -> {ok, Pid};
+        []                -> {error, not_found}
+    end.
+
+stripes() ->
+    erlang:system_info(schedulers).
+
+%% The stripe process and its table share the name.
+name(Stripe) ->
+    list_to_atom(atom_to_list(?MODULE) ++ "_" ++ integer_to_list(Stripe)).
 
 %%----------------------------------------------------------------------------
 
-init([]) ->
-    {ok, #state{client_ids = dict:new()}}. % clientid -> {pid, monitor}
+init([Stripe]) ->
+    Table = ets:new(name(Stripe), [set, protected, named_table,
+                                   {read_concurrency, true}]),
+    {ok, #state{table = Table, monitors = dict:new()}}. % monitor -> clientid
 
 %%--------------------------------------------------------------------------
 
 handle_call({register, ClientId, Pid}, _From,
-            State = #state{client_ids = Ids}) ->
-    Ids1 = case dict:find(ClientId, Ids) of
-               {ok, {OldPid, MRef}} when Pid =/= OldPid ->
-                   catch gen_server2:cast(OldPid, duplicate_id),
-                   erlang:demonitor(MRef),
-                   dict:erase(ClientId, Ids);
-               error ->
-                   Ids
-           end,
-    Ids2 = dict:store(ClientId, {Pid, erlang:monitor(process, Pid)}, Ids1),
-    {reply, ok, State#state{client_ids = Ids2}};
-
-handle_call({unregister, ClientId, Pid}, _From, State = #state{client_ids = Ids}) ->
-    {Reply, Ids1} = case dict:find(ClientId, Ids) of
-                        {ok, {Pid, MRef}} -> erlang:demonitor(MRef),
-                                             {ok, dict:erase(ClientId, Ids)};
-                        _                 -> {ok, Ids}
-                    end,
-    {reply, Reply, State#state{ client_ids = Ids1 }};
+            State = #state{table = Table, monitors = Monitors}) ->
+    Monitors1 =
+        case ets:lookup(Table, ClientId) of
+            [{_, Pid, _MRef}] ->
+                Monitors;
+            Existing ->
+                MRef = erlang:monitor(process, Pid),
+                true = ets:insert(Table, {ClientId, Pid, MRef}),
+                dict:store(MRef, ClientId, drop_existing(Existing, Monitors))
+        end,
+    {reply, ok, State#state{monitors = Monitors1}};
 
 handle_call(Msg, _From, State) ->
     {stop, {unhandled_call, Msg}, State}.
 
+handle_cast({unregister, ClientId, Pid},
+            State = #state{table = Table, monitors = Monitors}) ->
+    case ets:lookup(Table, ClientId) of
+        [{_, Pid, MRef}] -> erlang:demonitor(MRef),
+                            true = ets:delete(Table, ClientId),
+                            {noreply, State#state{monitors = dict:erase(MRef, Monitors)}};
+        _                -> {noreply, State}
+    end;
+
 handle_cast(Msg, State) ->
     {stop, {unhandled_cast, Msg}, State}.
 
@@ -76,19 +96,30 @@ handle_info({'EXIT', _, {shutdown, closed}}, State) ->
     {stop, {shutdown, closed}, State};
 
 handle_info({'DOWN', MRef, process, DownPid, _Reason},
-            State = #state{client_ids = Ids}) ->
-    Ids1 = dict:filter(fun (ClientId, {Pid, M})
-                           when Pid =:= DownPid, MRef =:= M ->
-                               rabbit_log:warning("MQTT disconnect from ~p~n",
-                                                  [ClientId]),
-                               false;
-                           (_, _) ->
-                               true
-                       end, Ids),
-    {noreply, State #state{ client_ids = Ids1 }}.
+            State = #state{table = Table, monitors = Monitors}) ->
+    case dict:find(MRef, Monitors) of
+        {ok, ClientId} ->
+            rabbit_log:warning("MQTT disconnect from ~p~n", [ClientId]),
+            true = ets:delete_object(Table, {ClientId, DownPid, MRef}),
+            {noreply, State#state{monitors = dict:erase(MRef, Monitors)}};
+        error ->
+            {noreply, State}
+    end.
 
 terminate(_Reason, _State) ->
     ok.
 
 code_change(_OldVsn, State, _Extra) ->
     {ok, State}.
+
+%%----------------------------------------------------------------------------
+
+drop_existing([], Monitors) ->
+    Monitors;
+drop_existing([{_, OldPid, OldMRef}], Monitors) ->
+    catch gen_server2:cast(OldPid, duplicate_id),
+    erlang:demonitor(OldMRef),
+    dict:erase(OldMRef, Monitors).
+
+stripe_for(ClientId) ->
+    name(erlang:phash2(ClientId, stripes()) + 1).
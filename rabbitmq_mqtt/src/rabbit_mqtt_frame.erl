@@ -115,12 +115,24 @@ parse_frame(Bin, #mqtt_frame_fixed{ type = Type,
             Length = 0,
             wrap(Fixed, Rest);
         {_, TooShortBin} ->
-            {more, fun(BinMore) ->
-                           parse_frame(<<TooShortBin/binary, BinMore/binary>>,
-                                       Fixed, Length)
-                   end}
+            gather_frame([TooShortBin], byte_size(TooShortBin), Fixed, Length)
      end.
 
+%% The chunks of a frame that has not fully arrived yet are only kept
+%% (newest first) until the remaining length is there, and then joined
+%% and parsed once, instead of being joined and parsed again with every
+%% chunk, which is quadratic in the number of chunks of a big frame.
+gather_frame(Chunks, Size, Fixed, Length) ->
+    {more, fun(BinMore) ->
+                   Size1 = Size + byte_size(BinMore),
+                   case Size1 >= Length of
+                       true  -> parse_frame(
+                                  iolist_to_binary(lists:reverse(Chunks, [BinMore])),
+                                  Fixed, Length);
+                       false -> gather_frame([BinMore | Chunks], Size1, Fixed, Length)
+                   end
+           end}.
+
 parse_topics(_, <<>>, Topics) ->
     Topics;
 parse_topics(?SUBSCRIBE = Sub, Bin, Topics) ->
@@ -143,7 +155,7 @@ parse_utf(Bin, _) ->
     parse_utf(Bin).
 
 parse_utf(<<Len:16/big, Str:Len/binary, Rest/binary>>) ->
-    {binary_to_list(Str), Rest}.
+    {Str, Rest}.
 
 parse_msg(Bin, 0) ->
     {undefined, Bin};
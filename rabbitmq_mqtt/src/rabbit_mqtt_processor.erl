@@ -18,7 +18,8 @@
 
 -export([info/2, initial_state/2, initial_state/4,
          process_frame/2, amqp_pub/2, amqp_callback/2, send_will/1,
-         close_connection/1]).
+         close_connection/1, refresh_acl/1, pending_output/0,
+         flush_client/1, pending_acks/1, flush_acks/1]).
 
 %% for testing purposes
 -export([get_vhost_username/1]).
@@ -30,6 +31,9 @@
 %%-define(APP, rabbitmq_mqtt).
 -define(FRAME_TYPE(Frame, Type),
         Frame = #mqtt_frame{ fixed = #mqtt_frame_fixed{ type = Type }}).
+-define(TOPIC_CACHE_SIZE, 256).
+-define(ACL_RETRY_INTERVAL, 1000).
+-define(OUTBOUND, rabbit_mqtt_outbound).
 
 initial_state(Socket, SSLLoginName) ->
     initial_state(Socket, SSLLoginName,
@@ -47,17 +51,20 @@ initial_state(Socket, SSLLoginName,
         {frame_max, 0},
         {client_properties,
          [{<<"product">>, longstr, <<"MQTT client">>}]} | Extra]},
-    #proc_state{ unacked_pubs   = gb_trees:empty(),
-                 awaiting_ack   = gb_trees:empty(),
-                 message_id     = 1,
-                 subscriptions  = dict:new(),
-                 consumer_tags  = {undefined, undefined},
-                 channels       = {undefined, undefined},
-                 exchange       = rabbit_mqtt_util:env(exchange),
-                 socket         = Socket,
-                 adapter_info   = AdapterInfo,
-                 ssl_login_name = SSLLoginName,
-                 send_fun       = SendFun }.
+    #proc_state{ unacked_pubs     = gb_trees:empty(),
+                 awaiting_ack     = queue:new(),
+                 message_id       = 1,
+                 subscriptions    = dict:new(),
+                 subscription_qos = index_subscriptions(dict:new()),
+                 consumer_tags    = {undefined, undefined},
+                 channels         = {undefined, undefined},
+                 exchange         = rabbit_mqtt_util:env(exchange),
+                 socket           = Socket,
+                 adapter_info     = AdapterInfo,
+                 ssl_login_name   = SSLLoginName,
+                 acl_expires      = 0,
+                 topic_cache      = {0, gb_trees:empty()},
+                 send_fun         = SendFun }.
 
 info(client_id, #proc_state{ client_id = ClientId }) -> ClientId.
 
@@ -78,17 +85,16 @@ process_request(?CONNECT,
                                            password   = Password,
                                            proto_ver  = ProtoVersion,
                                            clean_sess = CleanSess,
-                                           client_id  = ClientId0,
-                                           keep_alive = Keepalive} = Var},
+                                           client_id  = ClientId0} = Var},
                 PState = #proc_state{ ssl_login_name = SSLLoginName,
                                       send_fun = SendFun }) ->
     ClientId = case ClientId0 of
-                   []    -> rabbit_mqtt_util:gen_client_id();
-                   [_|_] -> ClientId0
+                   <<>> -> rabbit_mqtt_util:gen_client_id();
+                   _    -> ClientId0
                end,
     {Return, PState1} =
         case {lists:member(ProtoVersion, proplists:get_keys(?PROTOCOL_NAMES)),
-              ClientId0 =:= [] andalso CleanSess =:= false} of
+              ClientId0 =:= <<>> andalso CleanSess =:= false} of
             {false, _} ->
                 {?CONNACK_PROTO_VER, PState};
             {_, true} ->
@@ -98,40 +104,27 @@ process_request(?CONNECT,
                     nocreds ->
                         rabbit_log:error("MQTT login failed: no credentials provided~n"),
                         {?CONNACK_CREDENTIALS, PState};
-                    {invalid_creds, {undefined, Pass}} when is_list(Pass) ->
+                    {invalid_creds, {undefined, Pass}} when is_binary(Pass) ->
                         rabbit_log:error("MQTT login failed: no user username is provided"),
                         {?CONNACK_CREDENTIALS, PState};
-                    {invalid_creds, {User, undefined}} when is_list(User) ->
+                    {invalid_creds, {User, undefined}} when is_binary(User) ->
                         rabbit_log:error("MQTT login failed for ~p: no password provided", [User]),
                         {?CONNACK_CREDENTIALS, PState};
                     {UserBin, PassBin} ->
-                        case process_login(UserBin, PassBin, ProtoVersion, PState) of
-                            {?CONNACK_ACCEPT, Conn, VHost, AState} ->
-                                 RetainerPid =
-                                   rabbit_mqtt_retainer_sup:child_for_vhost(VHost),
-                                link(Conn),
-                                {ok, Ch} = amqp_connection:open_channel(Conn),
-                                link(Ch),
-                                amqp_channel:enable_delivery_flow_control(Ch),
-                                ok = rabbit_mqtt_collector:register(
-                                  ClientId, self()),
-                                Prefetch = rabbit_mqtt_util:env(prefetch),
-                                #'basic.qos_ok'{} = amqp_channel:call(
-                                  Ch, #'basic.qos'{prefetch_count = Prefetch}),
-                                rabbit_mqtt_reader:start_keepalive(self(), Keepalive),
-                                {SP, ProcState} =
-                                    maybe_clean_sess(
-                                        PState #proc_state{
-                                            will_msg   = make_will_msg(Var),
-                                            clean_sess = CleanSess,
-                                            channels   = {Ch, undefined},
-                                            connection = Conn,
-                                            client_id  = ClientId,
-                                            retainer_pid = RetainerPid,
-                                            auth_state = AState}),
-                                {{?CONNACK_ACCEPT, SP}, ProcState};
-                            ConnAck ->
-                                {ConnAck, PState}
+                        %% wait for our turn before anything is allocated
+                        %% on the broker, so that a storm of reconnects
+                        %% does not set them all up at once
+                        case rabbit_mqtt_admission:admit() of
+                            {ok, Ticket} ->
+                                try
+                                    setup_session(UserBin, PassBin, ClientId, Var, PState)
+                                after
+                                    rabbit_mqtt_admission:done(Ticket)
+                                end;
+                            {error, Reason} ->
+                                rabbit_log:warning("MQTT connection of ~p not admitted: ~p~n",
+                                                   [ClientId, Reason]),
+                                {?CONNACK_SERVER, PState}
                         end
                 end
         end,
@@ -149,16 +142,13 @@ process_request(?CONNECT,
 process_request(?PUBACK,
                 #mqtt_frame{
                   variable = #mqtt_frame_publish{ message_id = MessageId }},
-                #proc_state{ channels     = {Channel, _},
-                             awaiting_ack = Awaiting } = PState) ->
+                #proc_state{ awaiting_ack = Awaiting } = PState) ->
     %% tag can be missing because of bogus clients and QoS downgrades
-    case gb_trees:is_defined(MessageId, Awaiting) of
-      false ->
+    case take_awaiting(MessageId, Awaiting) of
+      error ->
         {ok, PState};
-      true ->
-        Tag = gb_trees:get(MessageId, Awaiting),
-        amqp_channel:cast(Channel, #'basic.ack'{ delivery_tag = Tag }),
-        {ok, PState #proc_state{ awaiting_ack = gb_trees:delete( MessageId, Awaiting)}}
+      {ok, Tag, Awaiting1} ->
+        {ok, ack_delivery(Tag, PState #proc_state{ awaiting_ack = Awaiting1 })}
     end;
 
 process_request(?PUBLISH,
@@ -173,8 +163,8 @@ process_request(?PUBLISH,
                   variable = #mqtt_frame_publish{ topic_name = Topic,
                                                   message_id = MessageId },
                   payload = Payload },
-                  PState = #proc_state{retainer_pid = RPid}) ->
-    check_publish_or_die(Topic, fun() ->
+                  PState0 = #proc_state{retainer_pid = RPid}) ->
+    check_publish_or_die(Topic, fun(PState) ->
         Msg = #mqtt_msg{retain     = Retain,
                         qos        = Qos,
                         topic      = Topic,
@@ -187,7 +177,7 @@ process_request(?PUBLISH,
           true  -> hand_off_to_retainer(RPid, Topic, Msg)
         end,
         {ok, Result}
-    end, PState);
+    end, PState0);
 
 process_request(?SUBSCRIBE,
                 #mqtt_frame{
@@ -198,11 +188,12 @@ process_request(?SUBSCRIBE,
                 #proc_state{channels = {Channel, _},
                             exchange = Exchange,
                             retainer_pid = RPid,
-                            send_fun = SendFun } = PState0) ->
-    check_subscribe_or_die(Topics, fun() ->
-        {QosResponse, PState1} =
+                            retainer_reader = Reader,
+                            send_fun = SendFun } = PState00) ->
+    check_subscribe_or_die(Topics, fun(PState0) ->
+        {QosResponse, Bindings, PState1} =
             lists:foldl(fun (#mqtt_topic{name = TopicName,
-                                         qos  = Qos}, {QosList, PState}) ->
+                                         qos  = Qos}, {QosList, BindingList, PState}) ->
                            SupportedQos = supported_subs_qos(Qos),
                            {Queue, #proc_state{subscriptions = Subs} = PState1} =
                                ensure_queue(SupportedQos, PState),
@@ -211,11 +202,12 @@ process_request(?SUBSCRIBE,
                                        exchange    = Exchange,
                                        routing_key = rabbit_mqtt_util:mqtt2amqp(
                                                        TopicName)},
-                           #'queue.bind_ok'{} = amqp_channel:call(Channel, Binding),
                            {[SupportedQos | QosList],
+                            [Binding | BindingList],
                             PState1 #proc_state{subscriptions =
-                                                dict:append(TopicName, SupportedQos, Subs)}}
-                       end, {[], PState0}, Topics),
+                                                add_subscription(TopicName, SupportedQos, Subs)}}
+                       end, {[], [], PState0}, Topics),
+        ok = bind_all(Channel, lists:reverse(Bindings)),
         SendFun(#mqtt_frame{fixed    = #mqtt_frame_fixed{type = ?SUBACK},
                             variable = #mqtt_frame_suback{
                                         message_id = MessageId,
@@ -224,13 +216,12 @@ process_request(?SUBSCRIBE,
         %% if QoS is > 0 then we need to generate a message id,
         %% and increment the counter.
         N = lists:foldl(fun (Topic, Acc) ->
-                          case maybe_send_retained_message(RPid, Topic, Acc, PState1) of
-                            {true, X} -> Acc + X;
-                            false     -> Acc
-                          end
+                          send_retained_messages(RPid, Reader, Topic, Acc, PState1)
                         end, MessageId, Topics),
-        {ok, PState1#proc_state{message_id = N}}
-    end, PState0);
+        {ok, PState1#proc_state{message_id       = N,
+                                subscription_qos = index_subscriptions(
+                                                     PState1#proc_state.subscriptions)}}
+    end, PState00);
 
 process_request(?UNSUBSCRIBE,
                 #mqtt_frame{
@@ -241,7 +232,6 @@ process_request(?UNSUBSCRIBE,
                                                       client_id     = ClientId,
                                                       subscriptions = Subs0,
                                                       send_fun      = SendFun } = PState) ->
-    Queues = rabbit_mqtt_util:subcription_queue_name(ClientId),
     Subs1 =
     lists:foldl(
       fun (#mqtt_topic{ name = TopicName }, Subs) ->
@@ -250,21 +240,21 @@ process_request(?UNSUBSCRIBE,
                       error                       -> []
                   end,
         lists:foreach(
-          fun (QosSub) ->
-                  Queue = element(QosSub + 1, Queues),
+          fun (Queue) ->
                   Binding = #'queue.unbind'{
                               queue       = Queue,
                               exchange    = Exchange,
                               routing_key =
                                   rabbit_mqtt_util:mqtt2amqp(TopicName)},
                   #'queue.unbind_ok'{} = amqp_channel:call(Channel, Binding)
-          end, QosSubs),
+          end, lists:usort([subscription_queue(QosSub, ClientId) || QosSub <- QosSubs])),
         dict:erase(TopicName, Subs)
       end, Subs0, Topics),
     SendFun(#mqtt_frame{ fixed    = #mqtt_frame_fixed { type       = ?UNSUBACK },
                          variable = #mqtt_frame_suback{ message_id = MessageId }},
                 PState),
-    {ok, PState #proc_state{ subscriptions = Subs1 }};
+    {ok, PState #proc_state{ subscriptions    = Subs1,
+                             subscription_qos = index_subscriptions(Subs1) }};
 
 process_request(?PINGREQ, #mqtt_frame{}, #proc_state{ send_fun = SendFun } = PState) ->
     SendFun(#mqtt_frame{ fixed = #mqtt_frame_fixed{ type = ?PINGRESP }},
@@ -276,6 +266,19 @@ process_request(?DISCONNECT, #mqtt_frame{}, PState) ->
 
 %%----------------------------------------------------------------------------
 
+%% The bindings of a SUBSCRIBE frame are pipelined: only the last one
+%% waits for its bind_ok. The channel handles methods in order, so that
+%% reply means all the others are in place as well, and a failing one
+%% closes the channel, which takes the connection down with it.
+bind_all(_Channel, []) ->
+    ok;
+bind_all(Channel, [Binding]) ->
+    #'queue.bind_ok'{} = amqp_channel:call(Channel, Binding),
+    ok;
+bind_all(Channel, [Binding | Bindings]) ->
+    ok = amqp_channel:cast(Channel, Binding #'queue.bind'{ nowait = true }),
+    bind_all(Channel, Bindings).
+
 hand_off_to_retainer(RetainerPid, Topic, #mqtt_msg{payload = <<"">>}) ->
   rabbit_mqtt_retainer:clear(RetainerPid, Topic),
   ok;
@@ -283,34 +286,37 @@ hand_off_to_retainer(RetainerPid, Topic, Msg) ->
   rabbit_mqtt_retainer:retain(RetainerPid, Topic, Msg),
   ok.
 
-maybe_send_retained_message(RPid, #mqtt_topic{name = S, qos = SubscribeQos}, MsgId,
-                            #proc_state{ send_fun = SendFun } = PState) ->
-  case rabbit_mqtt_retainer:fetch(RPid, S) of
-    undefined -> false;
-    Msg       ->
-                %% calculate effective QoS as the lower value of SUBSCRIBE frame QoS
-                %% and retained message QoS. The spec isn't super clear on this, we
-                %% do what Mosquitto does, per user feedback.
-                Qos = erlang:min(SubscribeQos, Msg#mqtt_msg.qos),
-                Id = case Qos of
-                  ?QOS_0 -> undefined;
-                  ?QOS_1 -> MsgId
-                end,
-                SendFun(#mqtt_frame{fixed = #mqtt_frame_fixed{
-                    type = ?PUBLISH,
-                    qos  = Qos,
-                    dup  = false,
-                    retain = Msg#mqtt_msg.retain
-                 }, variable = #mqtt_frame_publish{
-                    message_id = Id,
-                    topic_name = S
-                 },
-                 payload = Msg#mqtt_msg.payload}, PState),
-                 case Qos of
-                   ?QOS_0 -> false;
-                   ?QOS_1 -> {true, 1}
-                 end
-  end.
+%% A wildcard filter gets every matching retained message, each under
+%% its own topic. Returns the next message id. The matches are read from
+%% the store as one list, so a filter matching a large share of the
+%% retained messages builds all of them before the first one is sent.
+send_retained_messages(RPid, Reader, #mqtt_topic{name = S, qos = SubscribeQos}, MsgId,
+                       #proc_state{ send_fun = SendFun } = PState) ->
+  lists:foldl(
+    fun (Msg, Id0) ->
+        %% calculate effective QoS as the lower value of SUBSCRIBE frame QoS
+        %% and retained message QoS. The spec isn't super clear on this, we
+        %% do what Mosquitto does, per user feedback.
+        Qos = erlang:min(SubscribeQos, Msg#mqtt_msg.qos),
+        Id = case Qos of
+          ?QOS_0 -> undefined;
+          ?QOS_1 -> Id0
+        end,
+        SendFun(#mqtt_frame{fixed = #mqtt_frame_fixed{
+            type = ?PUBLISH,
+            qos  = Qos,
+            dup  = false,
+            retain = Msg#mqtt_msg.retain
+         }, variable = #mqtt_frame_publish{
+            message_id = Id,
+            topic_name = Msg#mqtt_msg.topic
+         },
+         payload = Msg#mqtt_msg.payload}, PState),
+        case Qos of
+          ?QOS_0 -> Id0;
+          ?QOS_1 -> msg_id_after(Id0)
+        end
+    end, MsgId, rabbit_mqtt_retainer:read(RPid, Reader, S)).
 
 amqp_callback({#'basic.deliver'{ consumer_tag = ConsumerTag,
                                  delivery_tag = DeliveryTag,
@@ -318,19 +324,17 @@ amqp_callback({#'basic.deliver'{ consumer_tag = ConsumerTag,
                #amqp_msg{ props = #'P_basic'{ headers = Headers },
                           payload = Payload },
                DeliveryCtx} = Delivery,
-              #proc_state{ channels      = {Channel, _},
-                           awaiting_ack  = Awaiting,
+              #proc_state{ awaiting_ack  = Awaiting,
                            message_id    = MsgId,
                            send_fun      = SendFun } = PState) ->
     amqp_channel:notify_received(DeliveryCtx),
-    case {delivery_dup(Delivery), delivery_qos(ConsumerTag, Headers, PState)} of
+    case {delivery_dup(Delivery), delivery_qos(ConsumerTag, Headers, RoutingKey, PState)} of
         {true, {?QOS_0, ?QOS_1}} ->
-            amqp_channel:cast(
-              Channel, #'basic.ack'{ delivery_tag = DeliveryTag }),
-            {ok, PState};
+            {ok, ack_delivery(DeliveryTag, PState)};
         {true, {?QOS_0, ?QOS_0}} ->
             {ok, PState};
         {Dup, {DeliveryQos, _SubQos} = Qos}     ->
+            {Topic, PState1} = cached_translation(amqp2mqtt, RoutingKey, PState),
             SendFun(
               #mqtt_frame{ fixed = #mqtt_frame_fixed{
                                      type = ?PUBLISH,
@@ -342,23 +346,19 @@ amqp_callback({#'basic.deliver'{ consumer_tag = ConsumerTag,
                                               ?QOS_0 -> undefined;
                                               ?QOS_1 -> MsgId
                                           end,
-                                        topic_name =
-                                          rabbit_mqtt_util:amqp2mqtt(
-                                            RoutingKey) },
-                           payload = Payload}, PState),
+                                        topic_name = Topic },
+                           payload = Payload}, PState1),
               case Qos of
                   {?QOS_0, ?QOS_0} ->
-                      {ok, PState};
+                      {ok, PState1};
                   {?QOS_1, ?QOS_1} ->
                       {ok,
                        next_msg_id(
-                         PState #proc_state{
+                         PState1 #proc_state{
                            awaiting_ack =
-                             gb_trees:insert(MsgId, DeliveryTag, Awaiting)})};
+                             queue:in({MsgId, DeliveryTag}, Awaiting)})};
                   {?QOS_0, ?QOS_1} ->
-                      amqp_channel:cast(
-                        Channel, #'basic.ack'{ delivery_tag = DeliveryTag }),
-                      {ok, PState}
+                      {ok, ack_delivery(DeliveryTag, PState1)}
               end
     end;
 
@@ -387,6 +387,75 @@ amqp_callback(#'basic.ack'{ multiple = false, delivery_tag = Tag },
                                                Tag, UnackedPubs) }}, PState),
     {ok, PState #proc_state{ unacked_pubs = gb_trees:delete(Tag, UnackedPubs) }}.
 
+%% Deliveries still waiting for their PUBACK, oldest first. PUBACKs
+%% mostly come in order, so the one acked is usually at the head.
+take_awaiting(MsgId, Awaiting) ->
+    case queue:out(Awaiting) of
+        {{value, {MsgId, Tag}}, Awaiting1} ->
+            {ok, Tag, Awaiting1};
+        _ ->
+            case lists:keytake(MsgId, 1, queue:to_list(Awaiting)) of
+                {value, {_, Tag}, Rest} -> {ok, Tag, queue:from_list(Rest)};
+                false                   -> error
+            end
+    end.
+
+%% Deliveries acknowledged by the client are not acked one by one but
+%% collected and acked with a single multiple = true basic.ack up to the
+%% oldest delivery still waiting for its PUBACK, once the connection has
+%% no more messages waiting (see rabbit_mqtt_reader:noreply/1), max_acks
+%% are collected or the first of them was collected max_delay
+%% milliseconds ago. Acks above a delivery still waiting are sent one by
+%% one. max_acks is kept below the prefetch count so the queue never
+%% waits for acks we hold back.
+ack_delivery(Tag, PState = #proc_state{ pending_acks = Pending }) ->
+    Now = time_compat:monotonic_time(milli_seconds),
+    {Count, Tags, Since} = case Pending of
+                               undefined -> {0, [], Now};
+                               _         -> Pending
+                           end,
+    PState1 = PState #proc_state{ pending_acks = {Count + 1, [Tag | Tags], Since} },
+    {MaxAcks, MaxDelay} = ack_limits(),
+    case Count + 1 >= MaxAcks orelse Now - Since >= MaxDelay of
+        true  -> flush_acks(PState1);
+        false -> PState1
+    end.
+
+pending_acks(#proc_state{ pending_acks = Pending }) ->
+    Pending =/= undefined.
+
+flush_acks(PState = #proc_state{ pending_acks = undefined }) ->
+    PState;
+flush_acks(PState = #proc_state{ pending_acks = {_, Tags, _},
+                                 awaiting_ack = Awaiting,
+                                 channels     = {Channel, _} }) ->
+    Oldest = case queue:peek(Awaiting) of
+                 {value, {_, Tag}} -> Tag;
+                 empty             -> infinity
+             end,
+    {Below, Above} = lists:partition(fun (Tag) -> Tag < Oldest end, Tags),
+    case Below of
+        [] -> ok;
+        _  -> amqp_channel:cast(Channel, #'basic.ack'{ delivery_tag = lists:max(Below),
+                                                       multiple     = true })
+    end,
+    [amqp_channel:cast(Channel, #'basic.ack'{ delivery_tag = Tag }) || Tag <- Above],
+    PState #proc_state{ pending_acks = undefined }.
+
+ack_limits() ->
+    Opts = case rabbit_mqtt_util:env(ack_batch) of
+               L when is_list(L) -> L;
+               _                 -> []
+           end,
+    MaxAcks = proplists:get_value(max_acks, Opts, 100),
+    {case rabbit_mqtt_util:env(prefetch) of
+         Prefetch when is_integer(Prefetch), Prefetch > 0 ->
+             erlang:min(MaxAcks, erlang:max(1, Prefetch div 2));
+         _ ->
+             MaxAcks
+     end,
+     proplists:get_value(max_delay, Opts, 10)}.
+
 delivery_dup({#'basic.deliver'{ redelivered = Redelivered },
               #amqp_msg{ props = #'P_basic'{ headers = Headers }},
               _DeliveryCtx}) ->
@@ -395,40 +464,122 @@ delivery_dup({#'basic.deliver'{ redelivered = Redelivered },
         {bool, Dup} -> Redelivered orelse Dup
     end.
 
-next_msg_id(PState = #proc_state{ message_id = 16#ffff }) ->
-    PState #proc_state{ message_id = 1 };
 next_msg_id(PState = #proc_state{ message_id = MsgId }) ->
-    PState #proc_state{ message_id = MsgId + 1 }.
+    PState #proc_state{ message_id = msg_id_after(MsgId) }.
+
+%% Message ids are 16 bit and never 0.
+msg_id_after(MsgId) when MsgId >= 16#ffff -> 1;
+msg_id_after(MsgId)                       -> MsgId + 1.
 
 %% decide at which qos level to deliver based on subscription
 %% and the message publish qos level. non-MQTT publishes are
 %% assumed to be qos 1, regardless of delivery_mode.
-delivery_qos(Tag, _Headers,  #proc_state{ consumer_tags = {Tag, _} }) ->
+delivery_qos(Tag, _Headers, _RoutingKey, #proc_state{ consumer_tags = {Tag, _} }) ->
     {?QOS_0, ?QOS_0};
-delivery_qos(Tag, Headers,   #proc_state{ consumer_tags = {_, Tag} }) ->
-    case rabbit_mqtt_util:table_lookup(Headers, <<"x-mqtt-publish-qos">>) of
-        {byte, Qos} -> {lists:min([Qos, ?QOS_1]), ?QOS_1};
-        undefined   -> {?QOS_1, ?QOS_1}
+delivery_qos(Tag, Headers, RoutingKey, #proc_state{ consumer_tags = {_, Tag} } = PState) ->
+    PubQos = case rabbit_mqtt_util:table_lookup(Headers, <<"x-mqtt-publish-qos">>) of
+                 {byte, Qos} -> lists:min([Qos, ?QOS_1]);
+                 undefined   -> ?QOS_1
+             end,
+    case PubQos =:= ?QOS_1 andalso single_queue() of
+        true  -> {subscription_qos(RoutingKey, PState), ?QOS_1};
+        false -> {PubQos, ?QOS_1}
+    end.
+
+single_queue() ->
+    rabbit_mqtt_util:env(subscription_queue) =:= single.
+
+subscription_queue(Qos, ClientId) ->
+    Queues = rabbit_mqtt_util:subcription_queue_name(ClientId),
+    case single_queue() of
+        true  -> element(?QOS_1 + 1, Queues);
+        false -> element(Qos + 1, Queues)
+    end.
+
+%% Subscribing to the same filter again replaces its QoS when there is
+%% a single queue, there is one queue per QoS to unbind from otherwise.
+add_subscription(TopicName, Qos, Subs) ->
+    case single_queue() of
+        true  -> dict:store(TopicName, [Qos], Subs);
+        false -> dict:append(TopicName, Qos, Subs)
+    end.
+
+%% The highest QoS of the subscriptions matching a message in the single
+%% queue, and QoS 1 if none matches, e.g. for the bindings of a previous
+%% session. Only worked out when there are subscriptions of both QoS:
+%% then QoS 0 if a QoS 0 filter matches and no QoS 1 filter does.
+subscription_qos(_RoutingKey, #proc_state{ subscription_qos = {all, Qos} }) ->
+    Qos;
+subscription_qos(RoutingKey, #proc_state{ subscription_qos = {mixed, Qos1, Qos0} }) ->
+    Words = binary:split(RoutingKey, <<".">>, [global]),
+    Matches = fun (Filter) -> filter_matches(Filter, Words) end,
+    case not lists:any(Matches, Qos1) andalso lists:any(Matches, Qos0) of
+        true  -> ?QOS_0;
+        false -> ?QOS_1
+    end.
+
+%% Done on SUBSCRIBE and UNSUBSCRIBE rather than per message: either the
+%% QoS all subscriptions share, or the filters split into words, those of
+%% QoS 1 subscriptions apart from those of QoS 0 ones.
+index_subscriptions(Subs) ->
+    case single_queue() of
+        false ->
+            undefined;
+        true ->
+            Filters = [{Filter, lists:max(QosList)} || {Filter, QosList} <- dict:to_list(Subs)],
+            case lists:usort([Qos || {_, Qos} <- Filters]) of
+                []    -> {all, ?QOS_1};
+                [Qos] -> {all, Qos};
+                _     -> {mixed, [filter_words(F) || {F, ?QOS_1} <- Filters],
+                                 [filter_words(F) || {F, ?QOS_0} <- Filters]}
+            end
     end.
 
+%% Filters are matched in their AMQP form, the same as the routing key
+%% and the bindings.
+filter_words(Filter) ->
+    binary:split(rabbit_mqtt_util:mqtt2amqp(Filter), <<".">>, [global]).
+
+%% "a/#" also matches "a" itself
+filter_matches([<<"#">>], _Words)               -> true;
+filter_matches([<<"*">> | Filter], [_ | Words]) -> filter_matches(Filter, Words);
+filter_matches([Word | Filter], [Word | Words]) -> filter_matches(Filter, Words);
+filter_matches([], [])                          -> true;
+filter_matches(_Filter, _Words)                 -> false.
+
 maybe_clean_sess(PState = #proc_state { clean_sess = false,
                                         channels   = {Channel, _},
                                         client_id  = ClientId }) ->
     {_Queue, PState1} = ensure_queue(?QOS_1, PState),
     SessionPresent = session_present(Channel, ClientId),
     {SessionPresent, PState1};
+%% The queue of a previous session is looked up first, which most clean
+%% sessions do not have, and only deleted, on the main channel, when it
+%% exists and we may. A refused delete would close the channel, and the
+%% connection with it. Only the access check is caught: a delete that
+%% fails anyway has taken the channel down, so the connection goes too.
 maybe_clean_sess(PState = #proc_state { clean_sess = true,
-                                        connection = Conn,
-                                        client_id  = ClientId }) ->
+                                        channels   = {Channel, _},
+                                        client_id  = ClientId,
+                                        auth_state = #auth_state{ user  = User,
+                                                                  vhost = VHost } }) ->
     {_, Queue} = rabbit_mqtt_util:subcription_queue_name(ClientId),
-    {ok, Channel} = amqp_connection:open_channel(Conn),
-    try amqp_channel:call(Channel, #'queue.delete'{ queue = Queue }) of
-        #'queue.delete_ok'{} -> ok = amqp_channel:close(Channel)
-    catch
-        exit:_Error -> ok
+    Resource = rabbit_misc:r(VHost, queue, Queue),
+    case rabbit_amqqueue:lookup(Resource) =:= {error, not_found} orelse
+         not may_configure(User, Resource) of
+        true  -> ok;
+        false -> #'queue.delete_ok'{} =
+                     amqp_channel:call(Channel, #'queue.delete'{ queue = Queue })
     end,
     {false, PState}.
 
+may_configure(User, Resource) ->
+    try rabbit_access_control:check_resource_access(User, Resource, configure) of
+        ok -> true
+    catch
+        exit:_Error -> false
+    end.
+
 session_present(Channel, ClientId)  ->
     {_, QueueQ1} = rabbit_mqtt_util:subcription_queue_name(ClientId),
     Declare = #'queue.declare'{queue   = QueueQ1,
@@ -440,6 +591,47 @@ session_present(Channel, ClientId)  ->
 
 %%----------------------------------------------------------------------------
 
+setup_session(UserBin, PassBin, ClientId,
+              Var = #mqtt_frame_connect{ proto_ver  = ProtoVersion,
+                                         clean_sess = CleanSess,
+                                         keep_alive = Keepalive },
+              PState) ->
+    %% the ACL round trip overlaps with the AMQP login
+    AclFetch = rabbit_mqtt_acl_redis:prefetch_acl(ClientId),
+    case process_login(UserBin, PassBin, ProtoVersion, PState) of
+        {?CONNACK_ACCEPT, Conn, VHost, AState} ->
+            RetainerPid =
+                rabbit_mqtt_retainer_sup:child_for_vhost(VHost),
+            link(Conn),
+            {ok, Ch} = amqp_connection:open_channel(Conn),
+            link(Ch),
+            amqp_channel:enable_delivery_flow_control(Ch),
+            ok = rabbit_mqtt_collector:register(
+              ClientId, self()),
+            Prefetch = rabbit_mqtt_util:env(prefetch),
+            #'basic.qos_ok'{} = amqp_channel:call(
+              Ch, #'basic.qos'{prefetch_count = Prefetch}),
+            rabbit_mqtt_reader:start_keepalive(self(), Keepalive),
+            {SP, ProcState} =
+                maybe_clean_sess(
+                  set_acl(
+                    rabbit_mqtt_acl_redis:await_acl(AclFetch),
+                    PState #proc_state{
+                        will_msg   = make_will_msg(Var),
+                        clean_sess = CleanSess,
+                        channels   = {Ch, undefined},
+                        connection = Conn,
+                        client_id  = ClientId,
+                        retainer_pid = RetainerPid,
+                        retainer_reader =
+                          rabbit_mqtt_retainer:reader(RetainerPid),
+                        auth_state = AState})),
+            {{?CONNACK_ACCEPT, SP}, ProcState};
+        ConnAck ->
+            _ = rabbit_mqtt_acl_redis:await_acl(AclFetch),
+            {ConnAck, PState}
+    end.
+
 make_will_msg(#mqtt_frame_connect{ will_flag   = false }) ->
     undefined;
 make_will_msg(#mqtt_frame_connect{ will_retain = Retain,
@@ -514,16 +706,15 @@ creds(User, Pass, SSLLoginName) ->
     CredentialsProvided = User =/= undefined orelse
                           Pass =/= undefined,
 
-    CorrectCredentials = is_list(User) andalso
-                         is_list(Pass),
+    CorrectCredentials = is_binary(User) andalso
+                         is_binary(Pass),
 
     SSLLoginProvided = TLSAuth =:= true andalso
                        SSLLoginName =/= none,
 
     case {CredentialsProvided, CorrectCredentials, SSLLoginProvided, HaveDefaultCreds} of
         %% Username and password take priority
-        {true, true, _, _}          -> {list_to_binary(User),
-                                        list_to_binary(Pass)};
+        {true, true, _, _}          -> {User, Pass};
         %% Either username or password is provided
         {true, false, _, _}         -> {invalid_creds, {User, Pass}};
         %% rabbitmq_mqtt.ssl_cert_login is true. SSL user name provided.
@@ -544,11 +735,22 @@ delivery_mode(?QOS_1) -> 2.
 %% different qos subscriptions are received in different queues
 %% with appropriate durability and timeout arguments
 %% this will lead to duplicate messages for overlapping subscriptions
-%% with different qos values - todo: prevent duplicates
-ensure_queue(Qos, #proc_state{ channels      = {Channel, _},
-                               client_id     = ClientId,
-                               clean_sess    = CleanSess,
-                          consumer_tags = {TagQ0, TagQ1} = Tags} = PState) ->
+%% with different qos values, unless subscription_queue is single: then
+%% all subscriptions are bound to the QoS 1 queue, which gets a message
+%% once however many of them match, and the QoS it is delivered at is
+%% worked out per message, see delivery_qos/4
+ensure_queue(Qos, PState) when Qos =/= ?QOS_1 ->
+    case single_queue() of
+        true  -> ensure_queue(?QOS_1, PState);
+        false -> ensure_queue1(Qos, PState)
+    end;
+ensure_queue(Qos, PState) ->
+    ensure_queue1(Qos, PState).
+
+ensure_queue1(Qos, #proc_state{ channels      = {Channel, _},
+                                client_id     = ClientId,
+                                clean_sess    = CleanSess,
+                                consumer_tags = {TagQ0, TagQ1} = Tags} = PState) ->
     {QueueQ0, QueueQ1} = rabbit_mqtt_util:subcription_queue_name(ClientId),
     Qos1Args = case {rabbit_mqtt_util:env(subscription_ttl), CleanSess} of
                    {undefined, _} ->
@@ -617,13 +819,13 @@ amqp_pub(#mqtt_msg{ qos        = Qos,
                     dup        = Dup,
                     message_id = MessageId,
                     payload    = Payload },
-         PState = #proc_state{ channels       = {ChQos0, ChQos1},
-                               exchange       = Exchange,
-                               unacked_pubs   = UnackedPubs,
-                               awaiting_seqno = SeqNo }) ->
+         PState0 = #proc_state{ channels       = {ChQos0, ChQos1},
+                                exchange       = Exchange,
+                                unacked_pubs   = UnackedPubs,
+                                awaiting_seqno = SeqNo }) ->
+    {RoutingKey, PState} = cached_translation(mqtt2amqp, Topic, PState0),
     Method = #'basic.publish'{ exchange    = Exchange,
-                               routing_key =
-                                   rabbit_mqtt_util:mqtt2amqp(Topic)},
+                               routing_key = RoutingKey},
     Headers = [{<<"x-mqtt-publish-qos">>, byte, Qos},
                {<<"x-mqtt-dup">>, bool, Dup}],
     Msg = #amqp_msg{ props   = #'P_basic'{ headers       = Headers,
@@ -639,6 +841,26 @@ amqp_pub(#mqtt_msg{ qos        = Qos,
     PState #proc_state{ unacked_pubs   = UnackedPubs1,
                         awaiting_seqno = SeqNo1 }.
 
+%% Devices keep publishing to the same few topics and subscribers keep
+%% receiving the same routing keys, so remember recent translations.
+%% The memo is simply dropped once it holds ?TOPIC_CACHE_SIZE entries.
+cached_translation(Direction, Topic,
+                   PState = #proc_state{ topic_cache = {Size, Cache} }) ->
+    Key = {Direction, Topic},
+    case gb_trees:lookup(Key, Cache) of
+        {value, Translated} ->
+            {Translated, PState};
+        none ->
+            Translated = rabbit_mqtt_util:Direction(Topic),
+            Cache1 = case Size >= ?TOPIC_CACHE_SIZE of
+                         true  -> {1, gb_trees:insert(Key, Translated,
+                                                      gb_trees:empty())};
+                         false -> {Size + 1, gb_trees:insert(Key, Translated,
+                                                             Cache)}
+                     end,
+            {Translated, PState #proc_state{ topic_cache = Cache1 }}
+    end.
+
 adapter_info(Sock, ProtoName) ->
     amqp_connection:socket_adapter_info(Sock, {ProtoName, "N/A"}).
 
@@ -653,9 +875,49 @@ human_readable_mqtt_version(4) ->
 human_readable_mqtt_version(_) ->
     "N/A".
 
-send_client(Frame, #proc_state{ socket = Sock }) ->
+%% Frames are not written one at a time but collected, in the process
+%% dictionary as send funs do not return a new state, and written in one
+%% port command once the reader has no more messages waiting (see
+%% rabbit_mqtt_reader:noreply/1), the buffer holds max_bytes or the
+%% oldest frame in it is max_delay milliseconds old, whichever comes
+%% first. So a burst of deliveries or of PUBACKs for a multiple ack
+%% costs one syscall rather than one per frame.
+send_client(Frame, PState = #proc_state{ socket = Sock }) ->
     %rabbit_log:info("MQTT sending frame ~p ~n", [Frame]),
-    rabbit_net:port_command(Sock, rabbit_mqtt_frame:serialise(Frame)).
+    Bin = rabbit_mqtt_frame:serialise(Frame),
+    {MaxBytes, MaxDelay} = outbound_limits(),
+    case get(?OUTBOUND) of
+        undefined when byte_size(Bin) >= MaxBytes ->
+            rabbit_net:port_command(Sock, Bin);
+        undefined ->
+            put(?OUTBOUND, {[Bin], byte_size(Bin),
+                            time_compat:monotonic_time(milli_seconds)});
+        {Bins, Bytes, Since} ->
+            Bytes1 = Bytes + byte_size(Bin),
+            put(?OUTBOUND, {[Bin | Bins], Bytes1, Since}),
+            case Bytes1 >= MaxBytes orelse
+                 time_compat:monotonic_time(milli_seconds) - Since >= MaxDelay of
+                true  -> flush_client(PState);
+                false -> true
+            end
+    end.
+
+pending_output() ->
+    get(?OUTBOUND) =/= undefined.
+
+flush_client(#proc_state{ socket = Sock }) ->
+    case erase(?OUTBOUND) of
+        undefined       -> true;
+        {Bins, _, _}    -> rabbit_net:port_command(Sock, lists:reverse(Bins))
+    end.
+
+outbound_limits() ->
+    Opts = case rabbit_mqtt_util:env(outbound_buffer) of
+               L when is_list(L) -> L;
+               _                 -> []
+           end,
+    {proplists:get_value(max_bytes, Opts, 65536),
+     proplists:get_value(max_delay, Opts, 10)}.
 
 close_connection(PState = #proc_state{ connection = undefined }) ->
     PState;
@@ -676,29 +938,82 @@ close_connection(PState = #proc_state{ connection = Connection,
 % is what happens anyway if there is an authorization failure at the AMQP level.
 
 check_publish_or_die(TopicName, Fn, PState) ->
-  case check_topic_access(TopicName, publish, PState) of
-    ok -> Fn();
-    %%_ -> {err, unauthorized, PState}
-    _ -> {ok, PState}
+  PState1 = ensure_acl(PState),
+  case check_topic_access(TopicName, publish, PState1) of
+    ok -> Fn(PState1);
+    %%_ -> {err, unauthorized, PState1}
+    _ -> {ok, PState1}
   end.
 
-check_subscribe_or_die([], Fn, _) ->
-  Fn();
-
-check_subscribe_or_die([#mqtt_topic{name = TopicName} | Topics], Fn, PState) ->
-  case check_topic_access(TopicName, subscribe, PState) of
-    ok -> check_subscribe_or_die(Topics, Fn, PState);
-    %%_ -> {err, unauthorized, PState}
-    _ -> {ok, PState}
+%% all the topics of a SUBSCRIBE frame are checked against one snapshot
+check_subscribe_or_die(Topics, Fn, PState) ->
+  PState1 = ensure_acl(PState),
+  case lists:all(fun (#mqtt_topic{name = TopicName}) ->
+                     check_topic_access(TopicName, subscribe, PState1) =:= ok
+                 end, Topics) of
+    true  -> Fn(PState1);
+    %%false -> {err, unauthorized, PState1}
+    false -> {ok, PState1}
   end.
 
 check_topic_access(TopicName, Access,
                    #proc_state{
-                      client_id  = ClientId}) ->
-    case rabbit_mqtt_acl_redis:check_acl(ClientId,Access,TopicName) of
-         allow          -> ok;
-         {deny,Reason}  -> rabbit_log:debug("MQTT check_topic_access deny client ~p: ~p~n",[ClientId, Reason]),
-                           %%io:fwrite("MQTT check_topic_access deny client ~p: ~p~n",[ClientId, Reason]),
+                      client_id  = ClientId,
+                      acl        = Acl}) ->
+    T0 = time_compat:monotonic_time(micro_seconds),
+    Result = rabbit_mqtt_acl_redis:check_acl(Acl,Access,TopicName),
+    rabbit_mqtt_acl_metrics:observe(check, time_compat:monotonic_time(micro_seconds) - T0),
+    case Result of
+         allow          -> rabbit_mqtt_acl_metrics:incr({checks, allow}),
+                           ok;
+         {deny,Reason}  -> rabbit_mqtt_acl_metrics:incr({checks, deny_label(Reason)}),
+                           case rabbit_mqtt_acl_metrics:sample_log() of
+                               true  -> rabbit_log:debug("MQTT check_topic_access deny client ~p: ~p~n",[ClientId, Reason]);
+                               false -> ok
+                           end,
                            reject
     end.
 
+deny_label("rule not set")   -> deny_no_rules;
+deny_label("rule not match") -> deny_no_match;
+deny_label(_)                -> deny_error.
+
+%% The ACL snapshot is loaded at CONNECT and reloaded once it is older
+%% than acl_refresh_interval, or when rabbit_mqtt_acl_invalidator tells
+%% us it changed. While redis is unavailable the connection keeps
+%% checking against the snapshot it has (or the fallback of
+%% rabbit_mqtt_acl_redis:fallback_acl/2) and retries every
+%% ACL_RETRY_INTERVAL.
+ensure_acl(PState = #proc_state{ acl_expires = Expires }) ->
+    case time_compat:monotonic_time(milli_seconds) >= Expires of
+        true  -> load_acl(PState);
+        false -> PState
+    end.
+
+%% The rules of the client changed in redis, reload them on the next check.
+refresh_acl(PState) ->
+    PState #proc_state{ acl_expires = 0 }.
+
+load_acl(PState = #proc_state{ client_id = ClientId }) ->
+    set_acl(rabbit_mqtt_acl_redis:fetch_acl(ClientId), PState).
+
+set_acl(Fetched, PState = #proc_state{ client_id = ClientId, acl = Last }) ->
+    case Fetched of
+        {ok, _} = Acl ->
+            PState #proc_state{ acl         = Acl,
+                                acl_expires = acl_expires() };
+        {error, Reason} ->
+            Acl = case Last of
+                      {ok, _} -> Last;
+                      _       -> rabbit_mqtt_acl_redis:fallback_acl(ClientId, Reason)
+                  end,
+            PState #proc_state{ acl         = Acl,
+                                acl_expires = time_compat:monotonic_time(milli_seconds) +
+                                              ?ACL_RETRY_INTERVAL }
+    end.
+
+acl_expires() ->
+    case rabbit_mqtt_util:env(acl_refresh_interval) of
+        Ms when is_integer(Ms) -> time_compat:monotonic_time(milli_seconds) + Ms;
+        _                      -> infinity
+    end.
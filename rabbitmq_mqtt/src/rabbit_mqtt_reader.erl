@@ -66,6 +66,7 @@ init([KeepaliveSup, Ref, Sock]) ->
                #state{socket                 = Sock,
                       conn_name              = ConnStr,
                       await_recv             = false,
+                      active_n               = active_n(Sock),
                       connection_state       = running,
                       received_connect_frame = false,
                       keepalive              = {none, none},
@@ -73,7 +74,7 @@ init([KeepaliveSup, Ref, Sock]) ->
                       conserve               = false,
                       parse_state            = rabbit_mqtt_frame:initial_state(),
                       proc_state             = ProcessorState }), #state.stats_timer),
-             {backoff, 1000, 1000, 10000});
+             backoff());
         {network_error, Reason} ->
             rabbit_net:fast_close(Sock),
             terminate({shutdown, Reason}, undefined);
@@ -107,7 +108,7 @@ handle_info(#'basic.ack'{} = Ack, State = #state{ proc_state = ProcState }) ->
     callback_reply(State, rabbit_mqtt_processor:amqp_callback(Ack, ProcState));
 
 handle_info(#'basic.consume_ok'{}, State) ->
-    {noreply, State, hibernate};
+    noreply(State);
 
 handle_info(#'basic.cancel'{}, State) ->
     {stop, {shutdown, subscription_cancelled}, State};
@@ -116,11 +117,11 @@ handle_info({'EXIT', _Conn, Reason}, State) ->
     {stop, {connection_died, Reason}, State};
 
 handle_info({inet_reply, _Ref, ok}, State) ->
-    {noreply, State, hibernate};
+    noreply(State);
 
 handle_info({inet_async, Sock, _Ref, {ok, Data}},
             State = #state{ socket = Sock, connection_state = blocked }) ->
-    {noreply, State#state{ deferred_recv = Data }, hibernate};
+    noreply(defer_recv(Data, State));
 
 handle_info({inet_async, Sock, _Ref, {ok, Data}},
             State = #state{ socket = Sock, connection_state = running }) ->
@@ -130,6 +131,24 @@ handle_info({inet_async, Sock, _Ref, {ok, Data}},
 handle_info({inet_async, _Sock, _Ref, {error, Reason}}, State = #state {}) ->
     network_error(Reason, State);
 
+handle_info({tcp, Sock, Data},
+            State = #state{ socket = Sock, connection_state = blocked }) ->
+    noreply(defer_recv(Data, State));
+
+handle_info({tcp, Sock, Data},
+            State = #state{ socket = Sock, connection_state = running }) ->
+    process_received_bytes(Data, control_throttle(State));
+
+%% the N receives are used up
+handle_info({tcp_passive, Sock}, State = #state{ socket = Sock }) ->
+    noreply(control_throttle(State #state{ await_recv = false }));
+
+handle_info({tcp_closed, Sock}, State = #state{ socket = Sock }) ->
+    network_error(closed, State);
+
+handle_info({tcp_error, Sock, Reason}, State = #state{ socket = Sock }) ->
+    network_error(Reason, State);
+
 handle_info({inet_reply, _Sock, {error, Reason}}, State = #state {}) ->
     network_error(Reason, State);
 
@@ -149,21 +168,32 @@ handle_info({start_keepalives, Keepalive},
     ReceiveFun = fun() -> Parent ! keepalive_timeout end,
     Heartbeater = rabbit_heartbeat:start(
                     KeepaliveSup, Sock, 0, SendFun, Keepalive, ReceiveFun),
-    {noreply, State #state { keepalive = Heartbeater }};
+    noreply(State #state { keepalive = Heartbeater });
 
 handle_info(keepalive_timeout, State = #state {conn_name = ConnStr,
                                                proc_state = PState}) ->
     log(error, "closing MQTT connection ~p (keepalive timeout)~n", [ConnStr]),
     send_will_and_terminate(PState, {shutdown, keepalive_timeout}, State);
 
+handle_info(refresh_acl, State = #state{ proc_state = ProcState }) ->
+    noreply(pstate(State, rabbit_mqtt_processor:refresh_acl(ProcState)));
+
 handle_info(emit_stats, State) ->
-    {noreply, emit_stats(State), hibernate};
+    noreply(emit_stats(State));
+
+%% nothing else to do, ack what the client acked and write out what was
+%% sent to it meanwhile
+handle_info(timeout, State = #state{ proc_state = ProcState }) ->
+    ProcState1 = rabbit_mqtt_processor:flush_acks(ProcState),
+    rabbit_mqtt_processor:flush_client(ProcState1),
+    {noreply, pstate(State, ProcState1), hibernate};
 
 handle_info(Msg, State) ->
     {stop, {mqtt_unexpected_msg, Msg}, State}.
 
 terminate(Reason, State) ->
     maybe_emit_stats(State),
+    flush_client(State),
     do_terminate(Reason, State).
 
 do_terminate({network_error, {ssl_upgrade_error, closed}, ConnStr}, _State) ->
@@ -235,18 +265,17 @@ process_received_bytes(<<>>, State = #state{proc_state = ProcState,
         undefined -> ok;
         _         -> log_new_connection(State)
     end,
-    {noreply, ensure_stats_timer(State#state{ received_connect_frame = true }), hibernate};
+    noreply(ensure_stats_timer(State#state{ received_connect_frame = true }));
 process_received_bytes(<<>>, State) ->
-    {noreply, ensure_stats_timer(State), hibernate};
+    noreply(ensure_stats_timer(State));
 process_received_bytes(Bytes,
                        State = #state{ parse_state = ParseState,
                                        proc_state  = ProcState,
                                        conn_name   = ConnStr }) ->
     case rabbit_mqtt_frame:parse(Bytes, ParseState) of
         {more, ParseState1} ->
-            {noreply,
-             ensure_stats_timer(control_throttle( State #state{ parse_state = ParseState1 })),
-             hibernate};
+            noreply(ensure_stats_timer(
+                      control_throttle( State #state{ parse_state = ParseState1 })));
         {ok, Frame, Rest} ->
             case rabbit_mqtt_processor:process_frame(Frame, ProcState) of
                 {ok, ProcState1, ConnPid} ->
@@ -274,7 +303,7 @@ process_received_bytes(Bytes,
     end.
 
 callback_reply(State, {ok, ProcState}) ->
-    {noreply, pstate(State, ProcState), hibernate};
+    noreply(pstate(State, ProcState));
 callback_reply(State, {error, Reason, ProcState}) ->
     {stop, Reason, pstate(State, ProcState)}.
 
@@ -284,6 +313,55 @@ start_keepalive(Pid, Keepalive) -> Pid ! {start_keepalives, Keepalive}.
 pstate(State = #state {}, PState = #proc_state{}) ->
     State #state{ proc_state = PState }.
 
+%% Frames for the client and acks for the queues are held back while
+%% more messages are waiting, see rabbit_mqtt_processor:send_client/2
+%% and ack_delivery/2, a zero timeout tells when there are none left.
+%% Otherwise we ask to hibernate, which gen_server2 only does once no
+%% message came in for the current backoff/0 delay.
+noreply(State = #state{ proc_state = ProcState }) ->
+    case rabbit_mqtt_processor:pending_output() orelse
+         rabbit_mqtt_processor:pending_acks(ProcState) of
+        true  -> {noreply, State, 0};
+        false -> {noreply, State, hibernate}
+    end.
+
+%% Hibernating after every message costs a full sweep of the heap and a
+%% wakeup for busy connections, so only connections idle for
+%% hibernate_after milliseconds are.
+backoff() ->
+    HibernateAfter = case rabbit_mqtt_util:env(hibernate_after) of
+                         Ms when is_integer(Ms), Ms >= 0 -> Ms;
+                         _                               -> 1000
+                     end,
+    {backoff, HibernateAfter, HibernateAfter, erlang:max(HibernateAfter, 10000)}.
+
+%% {active, N} delivers up to N packets without a receive call per
+%% packet. It came with Erlang/OTP 17, older releases (named R16B03 and
+%% such) and TLS sockets keep using async_recv.
+active_n(Sock) ->
+    case {rabbit_net:is_ssl(Sock), rabbit_mqtt_util:env(socket_active_n)} of
+        {false, N} when is_integer(N), N > 0 -> case erlang:system_info(otp_release) of
+                                                    "R" ++ _ -> undefined;
+                                                    _        -> N
+                                                end;
+        _                                    -> undefined
+    end.
+
+%% Packets still arriving after the socket was paused while blocked.
+defer_recv(Data, State = #state{ deferred_recv = undefined }) ->
+    State#state{ deferred_recv = Data };
+defer_recv(Data, State = #state{ deferred_recv = Deferred }) ->
+    State#state{ deferred_recv = <<Deferred/binary, Data/binary>> }.
+
+%% e.g. the CONNACK refusing a connection, the socket may be gone though;
+%% acks are sent before the channel is closed and would requeue
+flush_client(#state{ proc_state = ProcState = #proc_state{} }) ->
+    catch rabbit_mqtt_processor:flush_acks(ProcState),
+    catch rabbit_mqtt_processor:flush_client(ProcState),
+    ok;
+flush_client(_State) ->
+    ok.
+
 %%----------------------------------------------------------------------------
 
 log(Level, Fmt, Args) -> rabbit_log:log(connection, Level, Fmt, Args).
@@ -320,6 +398,9 @@ run_socket(State = #state{ deferred_recv = Data }) when Data =/= undefined ->
     State;
 run_socket(State = #state{ await_recv = true }) ->
     State;
+run_socket(State = #state{ socket = Sock, active_n = N }) when is_integer(N) ->
+    ok = rabbit_net:setopts(Sock, [{active, N}]),
+    State#state{ await_recv = true };
 run_socket(State = #state{ socket = Sock }) ->
     rabbit_net:async_recv(Sock, 0, infinity),
     State#state{ await_recv = true }.
@@ -329,7 +410,7 @@ control_throttle(State = #state{ connection_state = Flow,
     case {Flow, Conserve orelse credit_flow:blocked()} of
         {running,   true} -> ok = rabbit_heartbeat:pause_monitor(
                                     State#state.keepalive),
-                             State #state{ connection_state = blocked };
+                             pause_socket(State #state{ connection_state = blocked });
         {blocked,  false} -> ok = rabbit_heartbeat:resume_monitor(
                                     State#state.keepalive),
                              run_socket(State #state{
@@ -337,11 +418,22 @@ control_throttle(State = #state{ connection_state = Flow,
         {_,            _} -> run_socket(State)
     end.
 
+%% An {active, N} socket is switched to passive right away, whatever it
+%% still delivers is deferred until we are unblocked.
+pause_socket(State = #state{ socket = Sock, active_n = N }) when is_integer(N) ->
+    ok = rabbit_net:setopts(Sock, [{active, false}]),
+    State#state{ await_recv = false };
+pause_socket(State) ->
+    State.
+
 maybe_process_deferred_recv(State = #state{ deferred_recv = undefined }) ->
-    {noreply, State, hibernate};
-maybe_process_deferred_recv(State = #state{ deferred_recv = Data, socket = Sock }) ->
+    noreply(State);
+maybe_process_deferred_recv(State = #state{ deferred_recv = Data, socket = Sock,
+                                            active_n = undefined }) ->
     handle_info({inet_async, Sock, noref, {ok, Data}},
-                State#state{ deferred_recv = undefined }).
+                State#state{ deferred_recv = undefined });
+maybe_process_deferred_recv(State = #state{ deferred_recv = Data, socket = Sock }) ->
+    handle_info({tcp, Sock, Data}, State#state{ deferred_recv = undefined }).
 
 maybe_emit_stats(State) ->
     rabbit_event:if_enabled(State, #state.stats_timer,
@@ -0,0 +1,163 @@
+%% The contents of this file are subject to the Mozilla Public License
+%% Version 1.1 (the "License"); you may not use this file except in
+%% compliance with the License. You may obtain a copy of the License
+%% at http://www.mozilla.org/MPL/
+%%
+%% Software distributed under the License is distributed on an "AS IS"
+%% basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+%% the License for the specific language governing rights and
+%% limitations under the License.
+%%
+%% The Original Code is RabbitMQ.
+%%
+%% The Initial Developer of the Original Code is GoPivotal, Inc.
+%% Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+%%
+
+-module(rabbit_mqtt_retained_msg_index).
+
+-export([new/0, insert/2, delete/2, match/2, is_wildcard/1, destroy/1]).
+
+%% Topic-level trie of the retained topics of a store, so that a
+%% wildcard subscription only visits the branches it can match instead
+%% of every retained message.
+%%
+%% The trie is an ordered_set of edges
+%%   {{ParentNode, Word}, ChildNode, Count, IsTopic}
+%% where Count is the number of retained topics at or below the child,
+%% which tells when an edge can go, and IsTopic whether the path up to
+%% the child is itself a retained topic. Being ordered on {Parent, Word}
+%% the children of a node are one partially bound select away. The root
+%% is node 0.
+%%
+%% The table is written by its owner only, the retainer, but can be
+%% read by any process.
+
+-define(ROOT, 0).
+
+%%----------------------------------------------------------------------------
+
+new() ->
+    Tid = ets:new(rabbit_mqtt_retained_msg_index,
+                  [ordered_set, protected, {read_concurrency, true}]),
+    true = ets:insert(Tid, {next_node, ?ROOT}),
+    Tid.
+
+destroy(Tid) ->
+    true = ets:delete(Tid),
+    ok.
+
+%% Only to be called for topics not in the index yet.
+insert(Topic, Tid) ->
+    insert_words(words(Topic), ?ROOT, Tid).
+
+%% Only to be called for topics in the index.
+delete(Topic, Tid) ->
+    delete_words(words(Topic), ?ROOT, Tid).
+
+%% The retained topics matching a subscription filter.
+match(Filter, Tid) ->
+    match_words(words(Filter), ?ROOT, [], true, Tid, []).
+
+is_wildcard(Filter) ->
+    binary:match(Filter, [<<"+">>, <<"#">>]) =/= nomatch.
+
+%%----------------------------------------------------------------------------
+
+insert_words([Word | Words], Node, Tid) ->
+    Key = {Node, Word},
+    Child = case ets:lookup(Tid, Key) of
+                [{_, C, _, _}] ->
+                    ets:update_counter(Tid, Key, {3, 1}),
+                    C;
+                [] ->
+                    C = ets:update_counter(Tid, next_node, 1),
+                    true = ets:insert(Tid, {Key, C, 1, false}),
+                    C
+            end,
+    case Words of
+        [] -> true = ets:update_element(Tid, Key, {4, true}),
+              ok;
+        _  -> insert_words(Words, Child, Tid)
+    end.
+
+delete_words([Word | Words], Node, Tid) ->
+    Key = {Node, Word},
+    case ets:lookup(Tid, Key) of
+        [{_, Child, _, _}] ->
+            case ets:update_counter(Tid, Key, {3, -1}) of
+                %% nothing left below: drop the edge, the rest of the
+                %% branch only leads to this topic
+                0 -> true = ets:delete(Tid, Key),
+                     drop_branch(Words, Child, Tid);
+                _ -> case Words of
+                         [] -> true = ets:update_element(Tid, Key, {4, false}),
+                               ok;
+                         _  -> delete_words(Words, Child, Tid)
+                     end
+            end;
+        [] ->
+            ok
+    end.
+
+drop_branch([], _Node, _Tid) ->
+    ok;
+drop_branch([Word | Words], Node, Tid) ->
+    case ets:lookup(Tid, {Node, Word}) of
+        [{Key, Child, _, _}] -> true = ets:delete(Tid, Key),
+                                drop_branch(Words, Child, Tid);
+        []                   -> ok
+    end.
+
+%% Path is the reversed list of words leading to Node; wildcards at the
+%% first level do not match topics starting with $.
+match_words([], _Node, _Path, _First, _Tid, Acc) ->
+    Acc;
+match_words([<<"#">>], Node, Path, First, Tid, Acc) ->
+    descendants(Node, Path, First, Tid, Acc);
+match_words([<<"+">> | Words], Node, Path, First, Tid, Acc) ->
+    lists:foldl(fun ({Word, Child, IsTopic}, A) ->
+                        follow(Words, Child, [Word | Path], IsTopic, Tid, A)
+                end, Acc, children(Node, First, Tid));
+match_words([Word | Words], Node, Path, _First, Tid, Acc) ->
+    case ets:lookup(Tid, {Node, Word}) of
+        [{_, Child, _, IsTopic}] -> follow(Words, Child, [Word | Path], IsTopic, Tid, Acc);
+        []                       -> Acc
+    end.
+
+follow([], _Child, Path, IsTopic, _Tid, Acc) ->
+    maybe_add(IsTopic, Path, Acc);
+follow([<<"#">>], Child, Path, IsTopic, Tid, Acc) ->
+    %% "a/#" also matches "a" itself
+    descendants(Child, Path, false, Tid, maybe_add(IsTopic, Path, Acc));
+follow(Words, Child, Path, _IsTopic, Tid, Acc) ->
+    match_words(Words, Child, Path, false, Tid, Acc).
+
+descendants(Node, Path, First, Tid, Acc) ->
+    lists:foldl(fun ({Word, Child, IsTopic}, A) ->
+                        descendants(Child, [Word | Path], false, Tid,
+                                    maybe_add(IsTopic, [Word | Path], A))
+                end, Acc, children(Node, First, Tid)).
+
+children(Node, First, Tid) ->
+    Children = ets:select(Tid, [{{{Node, '$1'}, '$2', '_', '$3'}, [],
+                                 [{{'$1', '$2', '$3'}}]}]),
+    case First of
+        true  -> [C || C = {Word, _, _} <- Children, not is_dollar(Word)];
+        false -> Children
+    end.
+
+maybe_add(true,  Path, Acc) -> [topic(Path) | Acc];
+maybe_add(false, _Path, Acc) -> Acc.
+
+is_dollar(<<"$", _/binary>>) -> true;
+is_dollar(_)                 -> false.
+
+topic(Path) ->
+    join(lists:reverse(Path)).
+
+join([Word | Words]) ->
+    << Word/binary, << <<"/", W/binary>> || W <- Words >>/binary >>.
+
+words(Topic) ->
+    binary:split(Topic, <<"/">>, [global]).
@@ -16,13 +16,18 @@
 
 -module(rabbit_mqtt_retained_msg_store).
 
--export([behaviour_info/1, table_name_for/1]).
+-include("rabbit_mqtt.hrl").
+-include("rabbit_mqtt_frame.hrl").
+
+-export([behaviour_info/1, table_name_for/1, old_entries_spec/0,
+         binary_topics/1]).
 
 behaviour_info(callbacks) ->
     [{new,       2},
      {recover,   2},
      {insert,    3},
      {lookup,    2},
+     {match,     2},
      {delete,    2},
      {terminate, 1}];
 behaviour_info(_Other) ->
@@ -30,3 +35,17 @@ behaviour_info(_Other) ->
 
 table_name_for(VHost) ->
   rabbit_mqtt_util:vhost_name_to_table_name(VHost).
+
+%% Versions before topics were kept as binaries stored retained messages
+%% keyed by, and with a message topic of, the charlist of the UTF-8
+%% bytes. Stores select those entries with this match spec when they
+%% recover and put them back under the binary topic.
+old_entries_spec() ->
+  [{#retained_message{topic = '$1', _ = '_'}, [{is_list, '$1'}], ['$_']}].
+
+binary_topics(#retained_message{topic = Topic, mqtt_msg = Msg}) ->
+  Msg1 = case Msg of
+           #mqtt_msg{topic = T} when is_list(T) -> Msg#mqtt_msg{topic = list_to_binary(T)};
+           _                                    -> Msg
+         end,
+  #retained_message{topic = list_to_binary(Topic), mqtt_msg = Msg1}.
@@ -19,25 +19,32 @@
 -behaviour(rabbit_mqtt_retained_msg_store).
 -include("rabbit_mqtt.hrl").
 
--export([new/2, recover/2, insert/3, lookup/2, delete/2, terminate/1]).
+-export([new/2, recover/2, insert/3, lookup/2, match/2, delete/2, terminate/1]).
 
 -record(store_state, {
   %% DETS table name
-  table
+  table,
+  %% topic trie of the table, see rabbit_mqtt_retained_msg_index
+  index
 }).
 
 
 new(Dir, VHost) ->
-  Tid = open_table(Dir, VHost),
-  #store_state{table = Tid}.
+  {ok, Tid} = open_table(Dir, VHost),
+  #store_state{table = Tid, index = build_index(Tid)}.
 
 recover(Dir, VHost) ->
   case open_table(Dir, VHost) of
     {error, _} -> {error, uninitialized};
-    {ok, Tid}  -> {ok, #store_state{table = Tid}}
+    {ok, Tid}  -> ok = upgrade_topics(Tid),
+                  {ok, #store_state{table = Tid, index = build_index(Tid)}}
   end.
 
-insert(Topic, Msg, #store_state{table = T}) ->
+insert(Topic, Msg, #store_state{table = T, index = Idx}) ->
+  case dets:member(T, Topic) of
+    true  -> ok;
+    false -> ok = rabbit_mqtt_retained_msg_index:insert(Topic, Idx)
+  end,
   ok = dets:insert(T, #retained_message{topic = Topic, mqtt_msg = Msg}).
 
 lookup(Topic, #store_state{table = T}) ->
@@ -46,12 +53,40 @@ lookup(Topic, #store_state{table = T}) ->
     [Entry] -> Entry
   end.
 
-delete(Topic, #store_state{table = T}) ->
+match(Filter, #store_state{table = T, index = Idx}) ->
+  [Entry || Topic <- rabbit_mqtt_retained_msg_index:match(Filter, Idx),
+            Entry <- dets:lookup(T, Topic)].
+
+delete(Topic, #store_state{table = T, index = Idx}) ->
+  case dets:member(T, Topic) of
+    true  -> ok = rabbit_mqtt_retained_msg_index:delete(Topic, Idx);
+    false -> ok
+  end,
   ok = dets:delete(T, Topic).
 
-terminate(#store_state{table = T}) ->
+terminate(#store_state{table = T, index = Idx}) ->
+  ok = rabbit_mqtt_retained_msg_index:destroy(Idx),
   ok = dets:close(T).
 
+%% Moves entries with charlist topics to binary ones, see
+%% rabbit_mqtt_retained_msg_store:binary_topics/1. An entry already
+%% there under the binary topic is newer and wins.
+upgrade_topics(Tid) ->
+  Old = dets:select(Tid, rabbit_mqtt_retained_msg_store:old_entries_spec()),
+  [begin
+     _ = dets:insert_new(Tid, rabbit_mqtt_retained_msg_store:binary_topics(Entry)),
+     ok = dets:delete(Tid, Topic)
+   end || Entry = #retained_message{topic = Topic} <- Old],
+  ok.
+
+%% The index is not persisted, it is rebuilt from the topics on open.
+build_index(Tid) ->
+  Idx = rabbit_mqtt_retained_msg_index:new(),
+  ok = dets:foldl(fun (#retained_message{topic = Topic}, ok) ->
+                      rabbit_mqtt_retained_msg_index:insert(Topic, Idx)
+                  end, ok, Tid),
+  Idx.
+
 open_table(Dir, VHost) ->
   dets:open_file(rabbit_mqtt_retained_msg_store:table_name_for(VHost),
     table_options(rabbit_mqtt_util:path_for(Dir, VHost, ".dets"))).
@@ -19,34 +19,128 @@
 -behaviour(rabbit_mqtt_retained_msg_store).
 -include("rabbit_mqtt.hrl").
 
--export([new/2, recover/2, insert/3, lookup/2, delete/2, terminate/1]).
+-export([new/2, recover/2, insert/3, lookup/2, match/2, delete/2, terminate/1,
+         sync/1]).
+
+%% With {retained_message_store_ets_persistence, on_shutdown} the table
+%% is only written out by terminate/1, as it always was. With log every
+%% insert/3 and delete/2 is also appended to a change log, which sync/1
+%% flushes to disk every retained_message_store_ets_sync_interval ms,
+%% so a crash loses at most that much.
+%%
+%% Once the log outgrows both the table and
+%% retained_message_store_ets_snapshot_threshold bytes, sync/1 moves on
+%% to a new log segment and a background process writes the table to
+%% the snapshot file with ets:tab2file/3 and then deletes the segments
+%% before the new one. The table keeps changing while it is being
+%% saved, so the snapshot holds everything logged before the switch and
+%% possibly some of what came after. Replaying the remaining segments in
+%% order over it yields the latest state either way, since every record
+%% sets or clears a whole topic. Recovery therefore reads the snapshot
+%% and replays whatever segments are left, and neither shutdown nor boot
+%% have to write the whole table.
 
 -record(store_state, {
   %% ETS table ID
   table,
   %% where the table is stored on disk
-  filename
+  filename,
+  %% topic trie of the table, see rabbit_mqtt_retained_msg_index
+  index,
+  %% on_shutdown | log
+  persistence,
+  %% file handle of the current log segment
+  log,
+  %% sequence number of the current log segment
+  log_seq,
+  %% bytes in the segments before the current one
+  logged = 0,
+  %% the process writing a snapshot, if any
+  snapshotter
 }).
 
+-define(DEFAULT_SYNC_INTERVAL, 1000).
+-define(DEFAULT_SNAPSHOT_THRESHOLD, 16777216).
+-define(LOG_BUFFER, 65536).
+
 
 new(Dir, VHost) ->
   Path = rabbit_mqtt_util:path_for(Dir, VHost),
   TableName = rabbit_mqtt_retained_msg_store:table_name_for(VHost),
   file:delete(Path),
-  Tid = ets:new(TableName, [set, public, {keypos, #retained_message.topic}]),
-  #store_state{table = Tid, filename = Path}.
+  [file:delete(F) || {_, F} <- log_segments(Path)],
+  Tid = ets:new(TableName, table_options()),
+  open_log(#store_state{table = Tid, filename = Path,
+                        index = rabbit_mqtt_retained_msg_index:new(),
+                        persistence = persistence()}, 1).
 
 recover(Dir, VHost) ->
   Path = rabbit_mqtt_util:path_for(Dir, VHost),
-  case ets:file2tab(Path) of
-    {ok, Tid}  -> file:delete(Path),
-                  {ok, #store_state{table = Tid, filename = Path}};
-    {error, _} -> {error, uninitialized}
+  TableName = rabbit_mqtt_retained_msg_store:table_name_for(VHost),
+  file:delete(snapshot_tmp(Path)),
+  Segments = log_segments(Path),
+  case {ets:file2tab(Path), Segments} of
+    {{error, _}, []} ->
+      {error, uninitialized};
+    {Loaded, _} ->
+      Tid = case Loaded of
+              {ok, Tid0} -> upgrade_topics(ensure_protected(Tid0));
+              {error, _} -> ets:new(TableName, table_options())
+            end,
+      Logged = lists:sum([replay(F, Tid) || {_, F} <- Segments]),
+      State = #store_state{table = Tid, filename = Path,
+                           index = build_index(Tid),
+                           persistence = persistence()},
+      case State#store_state.persistence of
+        log ->
+          NextSeq = case Segments of
+                      [] -> 1;
+                      _  -> element(1, lists:last(Segments)) + 1
+                    end,
+          {ok, open_log(State#store_state{logged = Logged}, NextSeq)};
+        on_shutdown ->
+          %% written out again by terminate/1
+          file:delete(Path),
+          [file:delete(F) || {_, F} <- Segments],
+          {ok, State}
+      end
   end.
 
-insert(Topic, Msg, #store_state{table = T}) ->
+%% Writes only come from the retainer owning the table, reads also come
+%% straight from the connections.
+table_options() ->
+  [set, protected, {read_concurrency, true}, {keypos, #retained_message.topic}].
+
+%% Tables saved by older versions were public, copy them over.
+ensure_protected(Tid) ->
+  case {ets:info(Tid, protection), ets:info(Tid, read_concurrency)} of
+    {protected, true} ->
+      Tid;
+    _ ->
+      Tid1 = ets:new(ets:info(Tid, name), table_options()),
+      true = ets:insert(Tid1, ets:tab2list(Tid)),
+      true = ets:delete(Tid),
+      Tid1
+  end.
+
+%% Snapshots of older versions may have charlist topics, see
+%% rabbit_mqtt_retained_msg_store:binary_topics/1. Log segments never
+%% do. An entry already there under the binary topic is newer and wins.
+upgrade_topics(Tid) ->
+  Old = ets:select(Tid, rabbit_mqtt_retained_msg_store:old_entries_spec()),
+  [begin
+     _ = ets:insert_new(Tid, rabbit_mqtt_retained_msg_store:binary_topics(Entry)),
+     true = ets:delete(Tid, Topic)
+   end || Entry = #retained_message{topic = Topic} <- Old],
+  Tid.
+
+insert(Topic, Msg, S = #store_state{table = T, index = Idx}) ->
+  case ets:member(T, Topic) of
+    true  -> ok;
+    false -> ok = rabbit_mqtt_retained_msg_index:insert(Topic, Idx)
+  end,
   true = ets:insert(T, #retained_message{topic = Topic, mqtt_msg = Msg}),
-  ok.
+  append(S, {insert, Topic, Msg}).
 
 lookup(Topic, #store_state{table = T}) ->
   case ets:lookup(T, Topic) of
@@ -54,10 +148,148 @@ lookup(Topic, #store_state{table = T}) ->
     [Entry] -> Entry
   end.
 
-delete(Topic, #store_state{table = T}) ->
+match(Filter, #store_state{table = T, index = Idx}) ->
+  [Entry || Topic <- rabbit_mqtt_retained_msg_index:match(Filter, Idx),
+            Entry <- ets:lookup(T, Topic)].
+
+delete(Topic, S = #store_state{table = T, index = Idx}) ->
+  case ets:member(T, Topic) of
+    true  -> ok = rabbit_mqtt_retained_msg_index:delete(Topic, Idx);
+    false -> ok
+  end,
   true = ets:delete(T, Topic),
-  ok.
+  append(S, {delete, Topic}).
 
-terminate(#store_state{table = T, filename = Path}) ->
+terminate(#store_state{persistence = log, index = Idx, log = Log,
+                       snapshotter = Snapshotter}) ->
+  ok = rabbit_mqtt_retained_msg_index:destroy(Idx),
+  %% an unfinished snapshot is simply not used, the segments it was
+  %% about to replace are still there
+  case Snapshotter of
+    undefined -> ok;
+    Pid       -> exit(Pid, kill)
+  end,
+  ok = file:datasync(Log),
+  file:close(Log);
+terminate(#store_state{table = T, filename = Path, index = Idx}) ->
+  ok = rabbit_mqtt_retained_msg_index:destroy(Idx),
   ok = ets:tab2file(T, Path,
                     [{extended_info, [object_count]}]).
+
+%% Called by the retainer, returns when to be called again.
+sync(S = #store_state{persistence = on_shutdown}) ->
+  {S, infinity};
+sync(S = #store_state{log = Log, log_seq = Seq, logged = Logged}) ->
+  ok = file:datasync(Log),
+  Current = filelib:file_size(log_path(S#store_state.filename, Seq)),
+  S1 = case is_snapshotting(S) orelse
+            Logged + Current < snapshot_threshold(S) of
+         true  -> S;
+         false -> snapshot(S)
+       end,
+  {S1, sync_interval()}.
+
+build_index(Tid) ->
+  Idx = rabbit_mqtt_retained_msg_index:new(),
+  ets:foldl(fun (#retained_message{topic = Topic}, ok) ->
+                rabbit_mqtt_retained_msg_index:insert(Topic, Idx)
+            end, ok, Tid),
+  Idx.
+
+%%----------------------------------------------------------------------------
+
+persistence() ->
+  case rabbit_mqtt_util:env(retained_message_store_ets_persistence) of
+    log -> log;
+    _   -> on_shutdown
+  end.
+
+sync_interval() ->
+  case rabbit_mqtt_util:env(retained_message_store_ets_sync_interval) of
+    Ms when is_integer(Ms), Ms > 0 -> Ms;
+    _                              -> ?DEFAULT_SYNC_INTERVAL
+  end.
+
+%% Snapshotting a table that is mostly overwrites of the same topics
+%% would not shrink the log by much, so the log also has to be bigger
+%% than the table itself.
+snapshot_threshold(#store_state{table = T}) ->
+  Threshold = case rabbit_mqtt_util:env(retained_message_store_ets_snapshot_threshold) of
+                N when is_integer(N), N >= 0 -> N;
+                _                            -> ?DEFAULT_SNAPSHOT_THRESHOLD
+              end,
+  erlang:max(Threshold, ets:info(T, memory) * erlang:system_info(wordsize)).
+
+open_log(S = #store_state{persistence = on_shutdown}, _Seq) ->
+  S;
+open_log(S = #store_state{filename = Path}, Seq) ->
+  {ok, Log} = file:open(log_path(Path, Seq),
+                        [append, raw, binary,
+                         {delayed_write, ?LOG_BUFFER, sync_interval()}]),
+  S#store_state{log = Log, log_seq = Seq}.
+
+append(#store_state{persistence = on_shutdown}, _Op) ->
+  ok;
+append(#store_state{log = Log}, Op) ->
+  Bin = term_to_binary(Op),
+  file:write(Log, [<<(byte_size(Bin)):32, (erlang:crc32(Bin)):32>>, Bin]).
+
+%% Applies the records of a log segment to the table and returns the
+%% size of the segment. A record cut short or corrupted by a crash
+%% ends the segment.
+replay(File, Tid) ->
+  case file:read_file(File) of
+    {ok, Bin} -> replay_records(Bin, Tid),
+                 byte_size(Bin);
+    {error, _} -> 0
+  end.
+
+replay_records(<<Size:32, Crc:32, Bin:Size/binary, Rest/binary>>, Tid) ->
+  case erlang:crc32(Bin) of
+    Crc -> apply_op(binary_to_term(Bin), Tid),
+           replay_records(Rest, Tid);
+    _   -> ok
+  end;
+replay_records(_Torn, _Tid) ->
+  ok.
+
+apply_op({insert, Topic, Msg}, Tid) ->
+  true = ets:insert(Tid, #retained_message{topic = Topic, mqtt_msg = Msg});
+apply_op({delete, Topic}, Tid) ->
+  true = ets:delete(Tid, Topic).
+
+is_snapshotting(#store_state{snapshotter = undefined}) -> false;
+is_snapshotting(#store_state{snapshotter = Pid})       -> is_process_alive(Pid).
+
+snapshot(S = #store_state{table = T, filename = Path, log = Log, log_seq = Seq}) ->
+  ok = file:close(Log),
+  S1 = open_log(S#store_state{logged = 0}, Seq + 1),
+  Pid = spawn(fun () -> write_snapshot(T, Path, Seq + 1) end),
+  S1#store_state{snapshotter = Pid}.
+
+write_snapshot(T, Path, KeepFrom) ->
+  Tmp = snapshot_tmp(Path),
+  case ets:tab2file(T, Tmp, [{extended_info, [object_count]}, {sync, true}]) of
+    ok ->
+      ok = file:rename(Tmp, Path),
+      [file:delete(F) || {Seq, F} <- log_segments(Path), Seq < KeepFrom],
+      ok;
+    {error, Reason} ->
+      file:delete(Tmp),
+      rabbit_log:warning("MQTT retained message snapshot ~s failed: ~p~n",
+                         [Path, Reason])
+  end.
+
+snapshot_tmp(Path) ->
+  Path ++ ".tmp".
+
+log_path(Path, Seq) ->
+  Path ++ ".log." ++ integer_to_list(Seq).
+
+%% The log segments of a store, oldest first.
+log_segments(Path) ->
+  Prefix = filename:basename(Path) ++ ".log.",
+  Dir = filename:dirname(Path),
+  lists:sort([{list_to_integer(lists:nthtail(length(Prefix), F)),
+               filename:join(Dir, F)}
+              || F <- filelib:wildcard(Prefix ++ "*", Dir)]).
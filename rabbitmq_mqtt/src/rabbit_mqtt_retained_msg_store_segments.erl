@@ -0,0 +1,465 @@
+%% The contents of this file are subject to the Mozilla Public License
+%% Version 1.1 (the "License"); you may not use this file except in
+%% compliance with the License. You may obtain a copy of the License
+%% at http://www.mozilla.org/MPL/
+%%
+%% Software distributed under the License is distributed on an "AS IS"
+%% basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+%% the License for the specific language governing rights and
+%% limitations under the License.
+%%
+%% The Original Code is RabbitMQ.
+%%
+%% The Initial Developer of the Original Code is GoPivotal, Inc.
+%% Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+%%
+
+-module(rabbit_mqtt_retained_msg_store_segments).
+
+-behaviour(rabbit_mqtt_retained_msg_store).
+-include("rabbit_mqtt.hrl").
+
+-export([new/2, recover/2, insert/3, lookup/2, match/2, delete/2, terminate/1,
+         sync/1]).
+
+%% Retained messages in append-only segment files, with only the topics
+%% and where their latest message is kept in memory, so the RAM used
+%% grows with the number of topics but not with the size of the
+%% messages, and no file has to hold the whole store.
+%%
+%% Every insert/3 appends a {put, Topic, Msg} record, every delete/2 of
+%% a retained topic a {delete, Topic, FirstSeg} record, to the current
+%% segment, which is closed once it reaches
+%% retained_message_store_segments_file_size bytes. The locations table
+%% maps each topic to {Segment, Offset, Size} of its record and the
+%% oldest segment that may still hold an overwritten put of it, and the
+%% topic trie answers wildcard filters. A cache of up to
+%% retained_message_store_segments_cache_size bytes of messages spares
+%% the reads of the busiest topics; when it is full the least recently
+%% read messages are dropped by sync/1.
+%%
+%% sync/1, called by the retainer every
+%% retained_message_store_segments_sync_interval ms, also compacts one
+%% closed segment of which less than half is still live, by appending
+%% the live records to the current segment and removing the file. A
+%% delete is only needed while a segment from its FirstSeg up to the one
+%% it is in remains, as any of those may hold a put of the topic, so it
+%% is carried over while one does and dropped otherwise. A delete of a
+%% topic that was retained again is dropped as well, its FirstSeg going
+%% to the new location of the topic.
+%%
+%% On terminate/1 the locations are saved next to the segments. Without
+%% that file, i.e. after a crash, recover/2 rebuilds them by reading the
+%% segments in order, cutting off a record torn by the crash.
+%%
+%% Like the other stores only the retainer writes, while lookup/2 and
+%% match/2 can be called by any process: the tables are readable by all
+%% (the cache is even writable, a reader caches what it read when there
+%% is room) and segments are opened for every read. A reader racing with
+%% compaction retries on the new location of the record.
+
+-record(store_state, {
+  %% directory of the segment files
+  dir,
+  %% {Topic, Segment, Offset, Size, FirstSeg} of the latest record of
+  %% each topic
+  locations,
+  %% topic trie of the locations, see rabbit_mqtt_retained_msg_index
+  index,
+  %% {Topic, {Segment, Offset}, Msg, Size, LastRead} and the total size
+  cache,
+  %% the current segment and the total and live bytes of each segment
+  meta
+}).
+
+-define(HINT, "locations").
+-define(CACHE_BYTES, '$bytes').
+-define(COMPACT_RATIO, 0.5).
+-define(READ_ATTEMPTS, 3).
+-define(DEFAULT_FILE_SIZE, 16777216).
+-define(DEFAULT_CACHE_SIZE, 67108864).
+-define(DEFAULT_SYNC_INTERVAL, 1000).
+
+
+new(Dir, VHost) ->
+  Path = dir_for(Dir, VHost),
+  [file:delete(F) || {_, F} <- segments(Path)],
+  file:delete(hint_path(Path)),
+  ok = filelib:ensure_dir(hint_path(Path)),
+  S = init_state(Path, new_locations()),
+  open_active(S, 1),
+  S.
+
+recover(Dir, VHost) ->
+  Path = dir_for(Dir, VHost),
+  case segments(Path) of
+    [] ->
+      {error, uninitialized};
+    Segments ->
+      Locations = case load_hint(Path) of
+                    {ok, Tid} -> Tid;
+                    error     -> scan(Segments)
+                  end,
+      S = #store_state{locations = Locations, index = Idx, meta = Meta} =
+        init_state(Path, Locations),
+      true = ets:insert(Meta, [{{segment, N}, filelib:file_size(F), 0}
+                               || {N, F} <- Segments]),
+      ets:foldl(fun ({Topic, Seg, _Off, Size, _First}, ok) ->
+                    add_live(Meta, Seg, Size),
+                    rabbit_mqtt_retained_msg_index:insert(Topic, Idx)
+                end, ok, Locations),
+      {Active, _} = lists:last(Segments),
+      open_active(S, Active),
+      {ok, S}
+  end.
+
+insert(Topic, Msg, S = #store_state{locations = L, index = Idx, cache = C,
+                                    meta = Meta}) ->
+  Rec = record({put, Topic, Msg}),
+  {Seg, Off, Size} = append(Rec, S),
+  First = case ets:lookup(L, Topic) of
+            [{_, OldSeg, _, OldSize, OldFirst}] ->
+              add_live(Meta, OldSeg, -OldSize),
+              OldFirst;
+            [] ->
+              ok = rabbit_mqtt_retained_msg_index:insert(Topic, Idx),
+              Seg
+          end,
+  true = ets:insert(L, {Topic, Seg, Off, Size, First}),
+  add_live(Meta, Seg, Size),
+  drop_cached(Topic, C),
+  cache(Topic, {Seg, Off}, Msg, Size, C).
+
+lookup(Topic, S) ->
+  case read(Topic, S, ?READ_ATTEMPTS) of
+    not_found -> not_found;
+    Msg       -> #retained_message{topic = Topic, mqtt_msg = Msg}
+  end.
+
+match(Filter, S = #store_state{index = Idx}) ->
+  [#retained_message{topic = Topic, mqtt_msg = Msg}
+   || Topic <- rabbit_mqtt_retained_msg_index:match(Filter, Idx),
+      Msg <- [read(Topic, S, ?READ_ATTEMPTS)], Msg =/= not_found].
+
+delete(Topic, S = #store_state{locations = L, index = Idx, cache = C,
+                               meta = Meta}) ->
+  case ets:lookup(L, Topic) of
+    [{_, Seg, _, Size, First}] ->
+      append(record({delete, Topic, First}), S),
+      add_live(Meta, Seg, -Size),
+      true = ets:delete(L, Topic),
+      ok = rabbit_mqtt_retained_msg_index:delete(Topic, Idx),
+      drop_cached(Topic, C);
+    [] ->
+      ok
+  end.
+
+terminate(#store_state{dir = Path, locations = L, index = Idx, cache = C,
+                       meta = Meta}) ->
+  [{active, _, Fd, _}] = ets:lookup(Meta, active),
+  ok = file:datasync(Fd),
+  ok = file:close(Fd),
+  ok = ets:tab2file(L, hint_path(Path), [{extended_info, [object_count]},
+                                         {sync, true}]),
+  ok = rabbit_mqtt_retained_msg_index:destroy(Idx),
+  [true = ets:delete(T) || T <- [L, C, Meta]],
+  ok.
+
+%% Called by the retainer, returns when to be called again.
+sync(S = #store_state{cache = C, meta = Meta}) ->
+  [{active, _, Fd, _}] = ets:lookup(Meta, active),
+  ok = file:datasync(Fd),
+  evict(C),
+  case compaction_candidate(Meta) of
+    none -> ok;
+    Seg  -> compact(Seg, S)
+  end,
+  {S, env(retained_message_store_segments_sync_interval, ?DEFAULT_SYNC_INTERVAL)}.
+
+%%----------------------------------------------------------------------------
+
+dir_for(Dir, VHost) ->
+  rabbit_mqtt_util:path_for(Dir, VHost, ".segments").
+
+hint_path(Path) ->
+  filename:join(Path, ?HINT).
+
+segment_path(Path, Seg) ->
+  filename:join(Path, integer_to_list(Seg) ++ ".seg").
+
+%% The segment files, oldest first.
+segments(Path) ->
+  lists:sort([{list_to_integer(filename:basename(F, ".seg")), filename:join(Path, F)}
+              || F <- filelib:wildcard("*.seg", Path)]).
+
+new_locations() ->
+  ets:new(rabbit_mqtt_retained_msg_locations,
+          [set, protected, {read_concurrency, true}]).
+
+init_state(Path, Locations) ->
+  Cache = ets:new(rabbit_mqtt_retained_msg_cache,
+                  [set, public, {read_concurrency, true}, {write_concurrency, true}]),
+  true = ets:insert(Cache, {?CACHE_BYTES, 0}),
+  #store_state{dir       = Path,
+               locations = Locations,
+               index     = rabbit_mqtt_retained_msg_index:new(),
+               cache     = Cache,
+               meta      = ets:new(rabbit_mqtt_retained_msg_segments, [set, protected])}.
+
+env(Key, Default) ->
+  case rabbit_mqtt_util:env(Key) of
+    N when is_integer(N), N >= 0 -> N;
+    _                            -> Default
+  end.
+
+%%----------------------------------------------------------------------------
+%% Writing
+
+record(Op) ->
+  Bin = term_to_binary(Op),
+  <<(byte_size(Bin)):32, (erlang:crc32(Bin)):32, Bin/binary>>.
+
+open_active(#store_state{dir = Path, meta = Meta}, Seg) ->
+  File = segment_path(Path, Seg),
+  {ok, Fd} = file:open(File, [append, raw, binary]),
+  Pos = filelib:file_size(File),
+  ets:insert_new(Meta, {{segment, Seg}, Pos, 0}),
+  true = ets:insert(Meta, {active, Seg, Fd, Pos}),
+  ok.
+
+%% Appends a record to the current segment, moving on to a new one if it
+%% is full, and returns where it went. No write buffering, so that other
+%% processes can read what was written straight away.
+append(Rec, S = #store_state{meta = Meta}) ->
+  Size = byte_size(Rec),
+  [{active, Seg, Fd, Pos}] = ets:lookup(Meta, active),
+  case Pos > 0 andalso
+       Pos + Size > env(retained_message_store_segments_file_size, ?DEFAULT_FILE_SIZE) of
+    true ->
+      ok = file:datasync(Fd),
+      ok = file:close(Fd),
+      open_active(S, Seg + 1),
+      append(Rec, S);
+    false ->
+      ok = file:write(Fd, Rec),
+      true = ets:insert(Meta, {active, Seg, Fd, Pos + Size}),
+      ets:update_counter(Meta, {segment, Seg}, {2, Size}),
+      {Seg, Pos, Size}
+  end.
+
+add_live(Meta, Seg, N) ->
+  ets:update_counter(Meta, {segment, Seg}, {3, N}),
+  ok.
+
+%%----------------------------------------------------------------------------
+%% Reading
+
+read(_Topic, _S, 0) ->
+  not_found;
+read(Topic, S = #store_state{dir = Path, locations = L, cache = C}, Attempts) ->
+  case ets:lookup(L, Topic) of
+    [] ->
+      not_found;
+    [{_, Seg, Off, Size, _}] ->
+      case cached(Topic, {Seg, Off}, C) of
+        {ok, Msg} ->
+          Msg;
+        miss ->
+          case read_record(segment_path(Path, Seg), Off, Size) of
+            {ok, {put, Topic, Msg}} -> cache(Topic, {Seg, Off}, Msg, Size, C),
+                                       Msg;
+            %% compacted away in the meantime
+            _                       -> read(Topic, S, Attempts - 1)
+          end
+      end
+  end.
+
+read_record(File, Off, Size) ->
+  case file:open(File, [read, raw, binary]) of
+    {ok, Fd} ->
+      try file:pread(Fd, Off, Size) of
+        {ok, <<Len:32, Crc:32, Bin:Len/binary>>} ->
+          case erlang:crc32(Bin) of
+            Crc -> {ok, binary_to_term(Bin)};
+            _   -> {error, corrupt}
+          end;
+        {ok, _}    -> {error, corrupt};
+        eof        -> {error, eof};
+        {error, _} = E -> E
+      after
+        file:close(Fd)
+      end;
+    {error, _} = E ->
+      E
+  end.
+
+%%----------------------------------------------------------------------------
+%% Cache
+
+cached(Topic, Loc, C) ->
+  case ets:lookup(C, Topic) of
+    [{_, Loc, Msg, _, _}] ->
+      ets:update_element(C, Topic, {5, time_compat:monotonic_time()}),
+      {ok, Msg};
+    _ ->
+      miss
+  end.
+
+%% Readers only add messages that are not cached yet, and only the
+%% retainer removes them, so the total size stays exact.
+cache(Topic, Loc, Msg, Size, C) ->
+  [{_, Bytes}] = ets:lookup(C, ?CACHE_BYTES),
+  case Bytes + Size =< env(retained_message_store_segments_cache_size,
+                           ?DEFAULT_CACHE_SIZE) andalso
+       ets:insert_new(C, {Topic, Loc, Msg, Size, time_compat:monotonic_time()}) of
+    true  -> ets:update_counter(C, ?CACHE_BYTES, Size),
+             ok;
+    false -> ok
+  end.
+
+drop_cached(Topic, C) ->
+  case ets:lookup(C, Topic) of
+    [{_, _, _, Size, _}] -> true = ets:delete(C, Topic),
+                            ets:update_counter(C, ?CACHE_BYTES, -Size),
+                            ok;
+    []                   -> ok
+  end.
+
+%% Once the cache is nearly full, the least recently read tenth goes.
+evict(C) ->
+  Max = env(retained_message_store_segments_cache_size, ?DEFAULT_CACHE_SIZE),
+  [{_, Bytes}] = ets:lookup(C, ?CACHE_BYTES),
+  case Bytes > Max * 9 div 10 of
+    true ->
+      Entries = lists:sort(ets:select(C, [{{'$1', '_', '_', '$2', '$3'}, [],
+                                           [{{'$3', '$1', '$2'}}]}])),
+      evict(Entries, Bytes - Max * 8 div 10, C);
+    false ->
+      ok
+  end.
+
+evict([{_, Topic, Size} | Rest], ToFree, C) when ToFree > 0 ->
+  drop_cached(Topic, C),
+  evict(Rest, ToFree - Size, C);
+evict(_, _, _) ->
+  ok.
+
+%%----------------------------------------------------------------------------
+%% Compaction and recovery
+
+%% The closed segment with the least live data, if less than half of it
+%% is.
+compaction_candidate(Meta) ->
+  [{active, Active, _, _}] = ets:lookup(Meta, active),
+  case lists:sort([{Live / Total, Seg}
+                   || {{segment, Seg}, Total, Live} <- segment_stats(Meta),
+                      Seg =/= Active, Total > 0, Live / Total < ?COMPACT_RATIO]) of
+    []             -> none;
+    [{_, Seg} | _] -> Seg
+  end.
+
+segment_stats(Meta) ->
+  ets:match_object(Meta, {{segment, '_'}, '_', '_'}).
+
+compact(Seg, S = #store_state{dir = Path, locations = L, cache = C, meta = Meta}) ->
+  File = segment_path(Path, Seg),
+  Older = [N || {{segment, N}, _, _} <- segment_stats(Meta), N < Seg],
+  {ok, Bin} = file:read_file(File),
+  fold_records(
+    fun ({put, Topic, _}, Rec, Off, ok) ->
+          case ets:lookup(L, Topic) of
+            [{_, Seg, Off, Size, First}] ->
+              {NewSeg, NewOff, Size} = append(Rec, S),
+              true = ets:insert(L, {Topic, NewSeg, NewOff, Size, First}),
+              add_live(Meta, NewSeg, Size),
+              drop_cached(Topic, C);
+            _ ->
+              ok
+          end;
+        ({delete, Topic, First}, Rec, _Off, ok) ->
+          case ets:lookup(L, Topic) of
+            [{_, _, _, _, LiveFirst}] when LiveFirst =< First ->
+              ok;
+            [Live] ->
+              true = ets:insert(L, setelement(5, Live, First)),
+              ok;
+            [] ->
+              case lists:any(fun (N) -> N >= First end, Older) of
+                true  -> append(Rec, S),
+                         ok;
+                false -> ok
+              end
+          end
+    end, ok, Bin),
+  %% The copies must be on disk before the originals go. There is no
+  %% hint file to update while the store is open (recover/2 and new/2
+  %% remove it), so after a crash the segments are scanned, and find
+  %% either both or just the copies.
+  [{active, _, Fd, _}] = ets:lookup(Meta, active),
+  ok = file:datasync(Fd),
+  true = ets:delete(Meta, {segment, Seg}),
+  ok = file:delete(File).
+
+%% Rebuilds the locations from the segments after a crash.
+scan(Segments) ->
+  L = new_locations(),
+  [begin
+     {ok, Bin} = file:read_file(File),
+     Valid = fold_records(
+               fun ({put, Topic, _}, Rec, Off, _) ->
+                       First = case ets:lookup(L, Topic) of
+                                 [{_, _, _, _, F}] -> F;
+                                 []                -> Seg
+                               end,
+                       true = ets:insert(L, {Topic, Seg, Off, byte_size(Rec), First}),
+                       Off + byte_size(Rec);
+                   ({delete, Topic, _}, Rec, Off, _) ->
+                       true = ets:delete(L, Topic),
+                       Off + byte_size(Rec)
+               end, 0, Bin),
+     truncate(File, Valid, byte_size(Bin))
+   end || {Seg, File} <- Segments],
+  L.
+
+truncate(_File, Size, Size) ->
+  ok;
+truncate(File, Valid, _Size) ->
+  rabbit_log:warning("MQTT retained message segment ~s: discarding ~p "
+                     "bytes after the last complete record~n",
+                     [File, filelib:file_size(File) - Valid]),
+  {ok, Fd} = file:open(File, [read, write, raw, binary]),
+  {ok, Valid} = file:position(Fd, Valid),
+  ok = file:truncate(Fd),
+  ok = file:close(Fd).
+
+%% Folds over the records of a segment up to the first torn or corrupt
+%% one.
+fold_records(Fun, Acc, Bin) ->
+  fold_records(Fun, Acc, Bin, 0).
+
+fold_records(Fun, Acc, Bin, Off) ->
+  case Bin of
+    <<_:Off/binary, Len:32, Crc:32, Body:Len/binary, _/binary>> ->
+      case erlang:crc32(Body) of
+        Crc -> Size = Len + 8,
+               <<_:Off/binary, Rec:Size/binary, _/binary>> = Bin,
+               fold_records(Fun, Fun(binary_to_term(Body), Rec, Off, Acc),
+                            Bin, Off + Size);
+        _   -> Acc
+      end;
+    _ ->
+      Acc
+  end.
+
+load_hint(Path) ->
+  File = hint_path(Path),
+  Result = case filelib:is_file(File) of
+             true  -> ets:file2tab(File, [{verify, true}]);
+             false -> {error, missing}
+           end,
+  %% only valid until the next write
+  file:delete(File),
+  case Result of
+    {ok, Tid}  -> {ok, Tid};
+    {error, _} -> error
+  end.
@@ -23,7 +23,7 @@
 -export([init/1, handle_call/3, handle_cast/2, handle_info/2,
          terminate/2, code_change/3, start_link/2]).
 
--export([retain/3, fetch/2, clear/2, store_module/0]).
+-export([retain/3, fetch/2, clear/2, store_module/0, reader/1, read/3]).
 
 -define(SERVER, ?MODULE).
 -define(TIMEOUT, 30000).
@@ -31,7 +31,7 @@
 -record(retainer_state, {store_mod,
                          store}).
 
--spec retain(pid(), string(), mqtt_msg()) ->
+-spec retain(pid(), binary(), mqtt_msg()) ->
     {noreply, NewState :: term()} |
     {noreply, NewState :: term(), timeout() | hibernate} |
     {stop, Reason :: term(), NewState :: term()}.
@@ -50,6 +50,39 @@ retain(_Pid, _Topic, Msg = #mqtt_msg{retain = false}) ->
 fetch(Pid, Topic) ->
     gen_server2:call(Pid, {fetch, Topic}, ?TIMEOUT).
 
+%% Stores are only written by their retainer, but can be read by any
+%% process. A connection asks for a reader once and then fetches the
+%% retained messages itself instead of queueing up in our mailbox.
+reader(Pid) ->
+    gen_server2:call(Pid, reader, ?TIMEOUT).
+
+%% Only the ETS and segment stores are read in the calling process; the
+%% DETS store is read through the DETS server of its table, which still
+%% serialises the readers, if no longer behind our mailbox.
+%%
+%% The reader is stale once the retainer restarted with a new store, and
+%% so is Pid, which the connection got at CONNECT: the restarted
+%% retainer is a new process. The fetch from Pid then exits with noproc,
+%% and the connection gets no retained messages until it reconnects.
+read(Pid, {Mod, Store}, Filter) ->
+    try
+        fetch_from(Mod, Store, Filter)
+    catch
+        error:badarg -> fetch_or_none(Pid, Filter)
+    end;
+read(Pid, undefined, Filter) ->
+    fetch(Pid, Filter).
+
+fetch_or_none(Pid, Filter) ->
+    try
+        fetch(Pid, Filter)
+    catch
+        exit:{noproc, _} ->
+            rabbit_log:warning("MQTT retainer ~p is gone, no retained messages "
+                               "for ~p until the client reconnects~n", [Pid, Filter]),
+            []
+    end.
+
 clear(Pid, Topic) ->
     gen_server2:cast(Pid, {clear, Topic}).
 
@@ -63,7 +96,7 @@ init([StoreMod, VHost]) ->
                 {error, _}  -> #retainer_state{store = StoreMod:new(store_dir(), VHost),
                                                store_mod = StoreMod}
             end,
-    {ok, State}.
+    {ok, sync(State)}.
 
 store_module() ->
     case application:get_env(rabbitmq_mqtt, retained_message_store) of
@@ -82,20 +115,44 @@ handle_cast({clear, Topic},
     ok = Mod:delete(Topic, Store),
     {noreply, State}.
 
-handle_call({fetch, Topic}, _From,
+handle_call({fetch, Filter}, _From,
     State = #retainer_state{store = Store, store_mod = Mod}) ->
-    Reply = case Mod:lookup(Topic, Store) of
-                #retained_message{mqtt_msg = Msg} -> Msg;
-                not_found                         -> undefined
-            end,
-    {reply, Reply, State}.
+    {reply, fetch_from(Mod, Store, Filter), State};
+handle_call(reader, _From,
+    State = #retainer_state{store = Store, store_mod = Mod}) ->
+    {reply, {Mod, Store}, State}.
+
+fetch_from(Mod, Store, Filter) ->
+    case rabbit_mqtt_retained_msg_index:is_wildcard(Filter) of
+        true  -> [Msg || #retained_message{mqtt_msg = Msg} <- Mod:match(Filter, Store)];
+        false -> case Mod:lookup(Filter, Store) of
+                     #retained_message{mqtt_msg = Msg} -> [Msg];
+                     not_found                         -> []
+                 end
+    end.
 
 handle_info(stop, State) ->
     {stop, normal, State};
 
+handle_info(sync, State) ->
+    {noreply, sync(State)};
+
 handle_info(Info, State) ->
     {stop, {unknown_info, Info}, State}.
 
+%% Stores that persist as they go export sync/1, which returns the new
+%% store state and when it wants to be called again.
+sync(State = #retainer_state{store = Store, store_mod = Mod}) ->
+    case erlang:function_exported(Mod, sync, 1) of
+        true  -> {Store1, After} = Mod:sync(Store),
+                 case After of
+                     infinity -> ok;
+                     _        -> erlang:send_after(After, self(), sync)
+                 end,
+                 State#retainer_state{store = Store1};
+        false -> State
+    end.
+
 store_dir() ->
     rabbit_mnesia:dir().
 
@@ -38,20 +38,46 @@ init([{Listeners, SslListeners0}]) ->
                      end}
           end,
     {ok, {{one_for_all, 10, 10},
-          [{collector,
-            {rabbit_mqtt_collector, start_link, []},
-            transient, ?WORKER_WAIT, worker, [rabbit_mqtt_collector]},
+          collector_specs() ++
+          [{acl_cache,
+            {rabbit_mqtt_acl_cache, start_link, []},
+            transient, ?WORKER_WAIT, worker, [rabbit_mqtt_acl_cache]},
+           {acl_metrics,
+            {rabbit_mqtt_acl_metrics, start_link, []},
+            transient, ?WORKER_WAIT, worker, [rabbit_mqtt_acl_metrics]},
            {acl_redis,
             {rabbit_mqtt_acl_redis, start_link, []},
             transient, ?WORKER_WAIT, worker, [rabbit_mqtt_acl_redis]},
+           {acl_breaker,
+            {rabbit_mqtt_acl_breaker, start_link, []},
+            transient, ?WORKER_WAIT, worker, [rabbit_mqtt_acl_breaker]},
+           {acl_invalidator,
+            {rabbit_mqtt_acl_invalidator, start_link, []},
+            transient, ?WORKER_WAIT, worker, [rabbit_mqtt_acl_invalidator]},
+           {admission,
+            {rabbit_mqtt_admission, start_link, []},
+            transient, ?WORKER_WAIT, worker, [rabbit_mqtt_admission]},
            {rabbit_mqtt_retainer_sup,
             {rabbit_mqtt_retainer_sup, start_link, [{local, rabbit_mqtt_retainer_sup}]},
              transient, ?SUPERVISOR_WAIT, supervisor, [rabbit_mqtt_retainer_sup]} |
+           acl_loader_specs() ++
            listener_specs(fun tcp_listener_spec/1,
                           [SocketOpts, NumTcpAcceptors], Listeners) ++
            listener_specs(fun ssl_listener_spec/1,
                           [SocketOpts, SslOpts, NumSslAcceptors], SslListeners)]}}.
 
+collector_specs() ->
+    [{rabbit_mqtt_collector:name(Stripe),
+      {rabbit_mqtt_collector, start_link, [Stripe]},
+      transient, ?WORKER_WAIT, worker, [rabbit_mqtt_collector]}
+     || Stripe <- lists:seq(1, rabbit_mqtt_collector:stripes())].
+
+acl_loader_specs() ->
+    [{rabbit_mqtt_acl_loader:name(Shard),
+      {rabbit_mqtt_acl_loader, start_link, [Shard]},
+      transient, ?WORKER_WAIT, worker, [rabbit_mqtt_acl_loader]}
+     || Shard <- lists:seq(1, rabbit_mqtt_acl_loader:shards())].
+
 listener_specs(Fun, Args, Listeners) ->
     [Fun([Address | Args]) ||
         Listener <- Listeners,
@@ -21,25 +21,33 @@
 -compile(export_all).
 
 subcription_queue_name(ClientId) ->
-    Base = "mqtt-subscription-" ++ ClientId ++ "qos",
-    {list_to_binary(Base ++ "0"), list_to_binary(Base ++ "1")}.
+    Base = <<"mqtt-subscription-", ClientId/binary, "qos">>,
+    {<<Base/binary, "0">>, <<Base/binary, "1">>}.
 
 %% amqp mqtt descr
 %% *    +    match one topic level
 %% #    #    match multiple topic levels
 %% .    /    topic level separator
+%%
+%% both translations only swap ASCII bytes, so a single pass over the
+%% bytes is safe for any UTF-8 topic
 mqtt2amqp(Topic) ->
-    erlang:iolist_to_binary(
-      re:replace(re:replace(Topic, "/", ".", [global]),
-                 "[\+]", "*", [global])).
+    << <<(mqtt2amqp_char(C))>> || <<C>> <= Topic >>.
 
 amqp2mqtt(Topic) ->
-    erlang:iolist_to_binary(
-      re:replace(re:replace(Topic, "[\*]", "+", [global]),
-                 "[\.]", "/", [global])).
+    << <<(amqp2mqtt_char(C))>> || <<C>> <= Topic >>.
+
+mqtt2amqp_char($/) -> $.;
+mqtt2amqp_char($+) -> $*;
+mqtt2amqp_char(C)  -> C.
+
+amqp2mqtt_char($.) -> $/;
+amqp2mqtt_char($*) -> $+;
+amqp2mqtt_char(C)  -> C.
 
 gen_client_id() ->
-    lists:nthtail(1, rabbit_guid:string(rabbit_guid:gen_secure(), [])).
+    list_to_binary(
+      lists:nthtail(1, rabbit_guid:string(rabbit_guid:gen_secure(), []))).
 
 env(Key) ->
     case application:get_env(rabbitmq_mqtt, Key) of
@@ -0,0 +1,595 @@
+%% The contents of this file are subject to the Mozilla Public License
+%% Version 1.1 (the "License"); you may not use this file except in
+%% compliance with the License. You may obtain a copy of the License
+%% at http://www.mozilla.org/MPL/
+%%
+%% Software distributed under the License is distributed on an "AS IS"
+%% basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+%% the License for the specific language governing rights and
+%% limitations under the License.
+%%
+%% The Original Code is RabbitMQ.
+%%
+%% The Initial Developer of the Original Code is GoPivotal, Inc.
+%% Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+%%
+
+-module(acl_SUITE).
+-compile([export_all]).
+
+-include_lib("common_test/include/ct.hrl").
+-include_lib("eunit/include/eunit.hrl").
+
+all() ->
+    [
+      {group, matching},
+      {group, sharding},
+      {group, cache},
+      {group, loader},
+      {group, metrics},
+      {group, degraded},
+      {group, invalidation}
+    ].
+
+groups() ->
+    [
+      {matching, [], [
+                      exact_rules,
+                      single_level_wildcard,
+                      multi_level_wildcard,
+                      dollar_topics,
+                      wildcard_subscriptions,
+                      no_rules
+                     ]},
+      {sharding, [], [
+                      ring_spreads_clients,
+                      adding_a_node_moves_few_clients
+                     ]},
+      {cache, [], [
+                   cache_hit_and_miss,
+                   cache_expires_entries,
+                   cache_evicts_unreferenced_entries,
+                   cache_delete
+                  ]},
+      {loader, [], [
+                    concurrent_fetches_share_one_query,
+                    fetches_of_different_clients_are_pipelined,
+                    prefetch_overlaps_other_work,
+                    invalidation_during_fetch_is_not_undone
+                   ]},
+      {metrics, [], [
+                     histograms_use_log2_buckets,
+                     text_format,
+                     bucket_bounds_are_inclusive,
+                     debug_logging_is_sampled
+                    ]},
+      {degraded, [], [
+                      slow_redis_times_out,
+                      breaker_opens_and_recovers,
+                      stale_rules_are_used_while_redis_is_down,
+                      failure_policy
+                     ]},
+      %% these need a redis-server listening on localhost:6379
+      {invalidation, [], [
+                          keyspace_notification_evicts_client,
+                          channel_message_evicts_client
+                         ]}
+    ].
+
+suite() ->
+    [{timetrap, {seconds, 60}}].
+
+init_per_suite(Config) ->
+    ok = application:load(rabbitmq_mqtt),
+    Config.
+end_per_suite(Config) ->
+    ok = application:unload(rabbitmq_mqtt),
+    Config.
+init_per_group(invalidation, Config) ->
+    case gen_tcp:connect("127.0.0.1", 6379, []) of
+        {ok, Sock} ->
+            gen_tcp:close(Sock),
+            {ok, Redis} = eredis:start_link("127.0.0.1", 6379),
+            unlink(Redis),
+            {ok, _} = eredis:q(Redis, ["CONFIG", "SET",
+                                       "notify-keyspace-events", "Kghx"]),
+            [{redis, Redis} | Config];
+        {error, Reason} ->
+            {skip, {no_redis_server, Reason}}
+    end;
+init_per_group(Group, Config) when Group =:= loader; Group =:= degraded ->
+    {FakeRedis, Port} = fake_redis([<<"topic1">>, <<"3">>]),
+    {ok, RedisArgs} = application:get_env(rabbitmq_mqtt, redis),
+    application:set_env(rabbitmq_mqtt, redis, [{pool_size, 2},
+                                               {host, "127.0.0.1"},
+                                               {port, Port}]),
+    application:set_env(rabbitmq_mqtt, acl_loader_shards, 2),
+    [{fake_redis, FakeRedis}, {redis_args, RedisArgs},
+     {acl_redis, start(rabbit_mqtt_acl_redis)} | Config];
+init_per_group(_, Config) -> Config.
+
+end_per_group(invalidation, Config) ->
+    eredis:stop(?config(redis, Config)),
+    Config;
+end_per_group(Group, Config) when Group =:= loader; Group =:= degraded ->
+    stop(?config(acl_redis, Config)),
+    eredis_pool:delete_pool(mqtt_redis_1),
+    ?config(fake_redis, Config) ! stop,
+    application:set_env(rabbitmq_mqtt, redis, ?config(redis_args, Config)),
+    application:unset_env(rabbitmq_mqtt, acl_loader_shards),
+    Config;
+end_per_group(_, Config) -> Config.
+
+init_per_testcase(Testcase, Config) ->
+    application:set_env(rabbitmq_mqtt, acl_cache_ttl, 60000),
+    application:set_env(rabbitmq_mqtt, acl_cache_max_entries, 100),
+    application:set_env(rabbitmq_mqtt, acl_invalidation,
+                        invalidation_source(Testcase)),
+    application:set_env(rabbitmq_mqtt, acl_batch_window, batch_window(Testcase)),
+    application:set_env(rabbitmq_mqtt, acl_timeout, 2000),
+    application:set_env(rabbitmq_mqtt, acl_failure_policy, deny),
+    application:set_env(rabbitmq_mqtt, acl_breaker, [{min_requests, 3},
+                                                     {open_for, 300}]),
+    Loaders = case ?config(fake_redis, Config) of
+                  undefined -> [];
+                  FakeRedis -> FakeRedis ! {delay, 100},
+                               [start(rabbit_mqtt_acl_breaker) |
+                                [start(rabbit_mqtt_acl_loader, [Shard])
+                                 || Shard <- lists:seq(1, rabbit_mqtt_acl_loader:shards())]]
+              end,
+    Pids = [start(rabbit_mqtt_acl_cache), start(rabbit_mqtt_acl_metrics) |
+            [start(rabbit_mqtt_acl_invalidator) ||
+                invalidation_source(Testcase) =/= none]] ++ Loaders,
+    [{pids, Pids} | Config].
+
+end_per_testcase(_, Config) ->
+    [stop(Pid) || Pid <- lists:reverse(?config(pids, Config))],
+    Config.
+
+invalidation_source(keyspace_notification_evicts_client) -> keyspace;
+invalidation_source(channel_message_evicts_client)       -> {channel, "mqtt_acl_test"};
+invalidation_source(_)                                   -> none.
+
+batch_window(concurrent_fetches_share_one_query)         -> 50;
+batch_window(fetches_of_different_clients_are_pipelined) -> 50;
+batch_window(_)                                          -> 0.
+
+start(Mod) ->
+    start(Mod, []).
+
+start(Mod, Args) ->
+    {ok, Pid} = apply(Mod, start_link, Args),
+    unlink(Pid),
+    Pid.
+
+stop(Pid) ->
+    MRef = erlang:monitor(process, Pid),
+    exit(Pid, kill),
+    receive {'DOWN', MRef, process, Pid, _} -> ok end.
+
+%% -------------------------------------------------------------------
+%% Matching
+%% -------------------------------------------------------------------
+
+exact_rules(_Config) ->
+    Acl = acl([<<"topic1">>, <<"1">>, <<"topic2">>, <<"2">>, <<"topic3">>, <<"3">>]),
+    allow = check(Acl, subscribe, <<"topic1">>),
+    deny  = check(Acl, publish,   <<"topic1">>),
+    deny  = check(Acl, subscribe, <<"topic2">>),
+    allow = check(Acl, publish,   <<"topic2">>),
+    allow = check(Acl, subscribe, <<"topic3">>),
+    allow = check(Acl, publish,   <<"topic3">>),
+    deny  = check(Acl, publish,   <<"topic4">>),
+    deny  = check(Acl, publish,   <<"topic1/a">>).
+
+single_level_wildcard(_Config) ->
+    Acl = acl([<<"sensors/+/temp">>, <<"2">>, <<"+">>, <<"1">>]),
+    allow = check(Acl, publish,   <<"sensors/kitchen/temp">>),
+    deny  = check(Acl, publish,   <<"sensors/kitchen/humidity">>),
+    deny  = check(Acl, publish,   <<"sensors/temp">>),
+    deny  = check(Acl, publish,   <<"sensors/a/b/temp">>),
+    allow = check(Acl, subscribe, <<"anything">>),
+    deny  = check(Acl, subscribe, <<"any/thing">>).
+
+multi_level_wildcard(_Config) ->
+    Acl = acl([<<"site/#">>, <<"3">>, <<"a/+/c/#">>, <<"2">>]),
+    allow = check(Acl, publish,   <<"site">>),
+    allow = check(Acl, publish,   <<"site/1/2/3">>),
+    deny  = check(Acl, publish,   <<"sites/1">>),
+    allow = check(Acl, publish,   <<"a/b/c">>),
+    allow = check(Acl, publish,   <<"a/b/c/d/e">>),
+    deny  = check(Acl, subscribe, <<"a/b/c/d">>).
+
+dollar_topics(_Config) ->
+    Acl = acl([<<"#">>, <<"3">>, <<"+/status">>, <<"3">>, <<"$SYS/x">>, <<"1">>]),
+    allow = check(Acl, publish,   <<"a/b">>),
+    deny  = check(Acl, publish,   <<"$SYS/status">>),
+    allow = check(Acl, subscribe, <<"$SYS/x">>).
+
+wildcard_subscriptions(_Config) ->
+    Acl = acl([<<"sensors/+/temp">>, <<"1">>, <<"cmd/#">>, <<"1">>,
+               <<"dev/1">>, <<"1">>]),
+    allow = check(Acl, subscribe, <<"sensors/+/temp">>),
+    allow = check(Acl, subscribe, <<"cmd/+">>),
+    allow = check(Acl, subscribe, <<"cmd/#">>),
+    deny  = check(Acl, subscribe, <<"sensors/#">>),
+    deny  = check(Acl, subscribe, <<"dev/+">>),
+    deny  = check(Acl, subscribe, <<"#">>).
+
+no_rules(_Config) ->
+    {deny, "rule not set"} =
+        rabbit_mqtt_acl_redis:check_acl({ok, acl([])}, publish, <<"topic1">>).
+
+acl(Rules) ->
+    rabbit_mqtt_acl_redis:compile_acl(Rules).
+
+check(Acl, PubSub, Topic) ->
+    case rabbit_mqtt_acl_redis:check_acl({ok, Acl}, PubSub, Topic) of
+        allow     -> allow;
+        {deny, _} -> deny
+    end.
+
+%% -------------------------------------------------------------------
+%% Sharding
+%% -------------------------------------------------------------------
+
+ring_spreads_clients(_Config) ->
+    Ring = ring(["10.0.0.1:6379", "10.0.0.2:6379", "10.0.0.3:6379"]),
+    Counts = lists:foldl(fun (Shard, Acc) -> orddict:update_counter(Shard, 1, Acc) end,
+                         orddict:new(), locate_all(Ring, 30000)),
+    [1, 2, 3] = orddict:fetch_keys(Counts),
+    [?assert(N > 7000 andalso N < 13000) || {_, N} <- Counts].
+
+adding_a_node_moves_few_clients(_Config) ->
+    Before = locate_all(ring(["10.0.0.1:6379", "10.0.0.2:6379", "10.0.0.3:6379"]), 10000),
+    After = locate_all(ring(["10.0.0.1:6379", "10.0.0.2:6379", "10.0.0.3:6379",
+                             "10.0.0.4:6379"]), 10000),
+    Moved = [To || {From, To} <- lists:zip(Before, After), From =/= To],
+    %% only towards the new node, and about a quarter of the clients
+    [4] = lists:usort(Moved),
+    ?assert(length(Moved) < 3500).
+
+ring(NodeIds) ->
+    Ring = ets:new(ring, [ordered_set]),
+    ok = rabbit_mqtt_acl_redis:build_ring(Ring, [{NodeId, 1} || NodeId <- NodeIds]),
+    Ring.
+
+locate_all(Ring, N) ->
+    [rabbit_mqtt_acl_redis:locate(Ring, integer_to_binary(I)) || I <- lists:seq(1, N)].
+
+%% -------------------------------------------------------------------
+%% Cache
+%% -------------------------------------------------------------------
+
+cache_hit_and_miss(_Config) ->
+    Acl = {ok, [{<<"topic1">>, 1}]},
+    not_found = rabbit_mqtt_acl_cache:lookup(<<"client1">>),
+    ok = rabbit_mqtt_acl_cache:insert(<<"client1">>, Acl),
+    {ok, Acl} = rabbit_mqtt_acl_cache:lookup(<<"client1">>),
+    {ok, Acl} = rabbit_mqtt_acl_cache:lookup(<<"client1">>),
+    Info = rabbit_mqtt_acl_cache:info(),
+    ?assertEqual(2, proplists:get_value(hits, Info)),
+    ?assertEqual(1, proplists:get_value(misses, Info)),
+    ?assertEqual(1, proplists:get_value(size, Info)).
+
+cache_expires_entries(_Config) ->
+    application:set_env(rabbitmq_mqtt, acl_cache_ttl, 50),
+    ok = rabbit_mqtt_acl_cache:insert(<<"client1">>, {ok, []}),
+    {ok, _} = rabbit_mqtt_acl_cache:lookup(<<"client1">>),
+    timer:sleep(100),
+    not_found = rabbit_mqtt_acl_cache:lookup(<<"client1">>).
+
+cache_evicts_unreferenced_entries(_Config) ->
+    application:set_env(rabbitmq_mqtt, acl_cache_max_entries, 10),
+    [ok = rabbit_mqtt_acl_cache:insert(N, {ok, []}) || N <- lists:seq(1, 100)],
+    %% casts to the owner are processed in order
+    _ = sys:get_state(rabbit_mqtt_acl_cache),
+    Info = rabbit_mqtt_acl_cache:info(),
+    ?assert(proplists:get_value(size, Info) =< 10),
+    ?assertEqual(90, proplists:get_value(evictions, Info)).
+
+cache_delete(_Config) ->
+    ok = rabbit_mqtt_acl_cache:insert(<<"client1">>, {ok, []}),
+    ok = rabbit_mqtt_acl_cache:delete(<<"client1">>),
+    not_found = rabbit_mqtt_acl_cache:lookup(<<"client1">>).
+
+%% -------------------------------------------------------------------
+%% Loader
+%% -------------------------------------------------------------------
+
+concurrent_fetches_share_one_query(Config) ->
+    Before = fake_redis_commands(Config),
+    Replies = fetch_concurrently([<<"client1">> || _ <- lists:seq(1, 100)]),
+    [{ok, _}] = lists:usort(Replies),
+    allow = rabbit_mqtt_acl_redis:check_acl(hd(Replies), publish, <<"topic1">>),
+    ?assertEqual(1, fake_redis_commands(Config) - Before),
+    Info = rabbit_mqtt_acl_loader:info(),
+    ?assertEqual(1, proplists:get_value(round_trips, Info)),
+    %% the callers that came after the query completed hit the cache
+    CacheHits = proplists:get_value(hits, rabbit_mqtt_acl_cache:info()),
+    ?assertEqual(99, proplists:get_value(coalesced, Info) + CacheHits).
+
+fetches_of_different_clients_are_pipelined(Config) ->
+    Before = fake_redis_commands(Config),
+    ClientIds = [integer_to_binary(N) || N <- lists:seq(1, 20)],
+    Replies = fetch_concurrently(ClientIds),
+    [{ok, _}] = lists:usort(Replies),
+    ?assertEqual(20, fake_redis_commands(Config) - Before),
+    Info = rabbit_mqtt_acl_loader:info(),
+    ?assertEqual(20, proplists:get_value(requests, Info)),
+    %% one batch per loader shard
+    ?assert(proplists:get_value(round_trips, Info) =< 2).
+
+%% -------------------------------------------------------------------
+%% Metrics
+%% -------------------------------------------------------------------
+
+histograms_use_log2_buckets(_Config) ->
+    [ok = rabbit_mqtt_acl_metrics:observe(check, Micros) || Micros <- [0, 1, 3, 900, 1000000]],
+    H = proplists:get_value(check, metrics(histograms)),
+    ?assertEqual(5, proplists:get_value(count, H)),
+    ?assertEqual(1000904, proplists:get_value(sum, H)),
+    Buckets = proplists:get_value(buckets, H),
+    %% bucket N counts the samples of at most 2^N
+    ?assertEqual(2, proplists:get_value(1, Buckets)),
+    ?assertEqual(0, proplists:get_value(2, Buckets)),
+    ?assertEqual(1, proplists:get_value(4, Buckets)),
+    ?assertEqual(1, proplists:get_value(1024, Buckets)),
+    ?assertEqual(1, proplists:get_value(1048576, Buckets)).
+
+text_format(_Config) ->
+    ok = rabbit_mqtt_acl_metrics:incr({checks, allow}),
+    ok = rabbit_mqtt_acl_metrics:incr({checks, allow}),
+    ok = rabbit_mqtt_acl_metrics:incr({redis_errors, timeout}, 3),
+    ok = rabbit_mqtt_acl_metrics:observe(redis_rtt, 3),
+    [{checks, allow}, {redis_errors, timeout}] =
+        [Key || {Key, _} <- metrics(counters)],
+    Text = with_loaders(fun () -> iolist_to_binary(rabbit_mqtt_acl_metrics:format()) end),
+    Lines = binary:split(Text, <<"\n">>, [global, trim]),
+    [true = lists:member(Line, Lines)
+     || Line <- [<<"rabbitmq_mqtt_acl_checks_total{result=\"allow\"} 2">>,
+                 <<"rabbitmq_mqtt_acl_redis_errors_total{reason=\"timeout\"} 3">>,
+                 <<"rabbitmq_mqtt_acl_redis_rtt_microseconds_bucket{le=\"2\"} 0">>,
+                 <<"rabbitmq_mqtt_acl_redis_rtt_microseconds_bucket{le=\"4\"} 1">>,
+                 <<"rabbitmq_mqtt_acl_redis_rtt_microseconds_bucket{le=\"+Inf\"} 1">>,
+                 <<"rabbitmq_mqtt_acl_redis_rtt_microseconds_count 1">>,
+                 <<"rabbitmq_mqtt_acl_cache_misses 0">>]].
+
+%% le is "less than or equal", so powers of two go in their own bucket
+bucket_bounds_are_inclusive(_Config) ->
+    [ok = rabbit_mqtt_acl_metrics:observe(pool_wait, Micros) || Micros <- [1, 2, 3, 4]],
+    Text = with_loaders(fun () -> iolist_to_binary(rabbit_mqtt_acl_metrics:format()) end),
+    Lines = binary:split(Text, <<"\n">>, [global, trim]),
+    [true = lists:member(Line, Lines)
+     || Line <- [<<"rabbitmq_mqtt_acl_pool_wait_microseconds_bucket{le=\"1\"} 1">>,
+                 <<"rabbitmq_mqtt_acl_pool_wait_microseconds_bucket{le=\"2\"} 2">>,
+                 <<"rabbitmq_mqtt_acl_pool_wait_microseconds_bucket{le=\"4\"} 4">>,
+                 <<"rabbitmq_mqtt_acl_pool_wait_microseconds_bucket{le=\"8\"} 4">>,
+                 <<"rabbitmq_mqtt_acl_pool_wait_microseconds_count 4">>]].
+
+debug_logging_is_sampled(_Config) ->
+    application:set_env(rabbitmq_mqtt, acl_log_sample_rate, 10),
+    Sampled = length([S || S <- [rabbit_mqtt_acl_metrics:sample_log()
+                                 || _ <- lists:seq(1, 1000)],
+                           S]),
+    %% every scheduler the calls ran on counts on its own, and may be up
+    %% to 9 calls short of its next sample
+    ?assert(Sampled =< 100),
+    ?assert(Sampled >= 100 - erlang:system_info(schedulers)),
+    application:set_env(rabbitmq_mqtt, acl_log_sample_rate, 1),
+    true = rabbit_mqtt_acl_metrics:sample_log().
+
+metrics(Key) ->
+    proplists:get_value(Key, with_loaders(fun rabbit_mqtt_acl_metrics:info/0)).
+
+with_loaders(Fun) ->
+    Loaders = [start(rabbit_mqtt_acl_loader, [Shard])
+               || Shard <- lists:seq(1, rabbit_mqtt_acl_loader:shards())],
+    try
+        Fun()
+    after
+        [stop(Pid) || Pid <- Loaders]
+    end.
+
+%% -------------------------------------------------------------------
+%% Degraded redis
+%% -------------------------------------------------------------------
+
+slow_redis_times_out(Config) ->
+    set_fake_redis_delay(Config, 500),
+    application:set_env(rabbitmq_mqtt, acl_timeout, 100),
+    {Micros, Reply} = timer:tc(rabbit_mqtt_acl_redis, fetch_acl, [<<"client1">>]),
+    {error, timeout} = Reply,
+    ?assert(Micros < 500000).
+
+breaker_opens_and_recovers(Config) ->
+    set_fake_redis_delay(Config, 300),
+    application:set_env(rabbitmq_mqtt, acl_timeout, 50),
+    [{error, timeout} = rabbit_mqtt_acl_redis:fetch_acl(Id)
+     || Id <- [<<"client1">>, <<"client2">>, <<"client3">>]],
+    open = proplists:get_value(state, breaker_info()),
+    %% redis is not asked while the breaker is open
+    Before = fake_redis_commands(Config),
+    {Micros, Reply} = timer:tc(rabbit_mqtt_acl_redis, fetch_acl, [<<"client4">>]),
+    {error, circuit_open} = Reply,
+    ?assert(Micros < 50000),
+    ?assertEqual(Before, fake_redis_commands(Config)),
+    %% the probe after open_for closes it again, once the connections
+    %% are done with the replies nobody waits for any more
+    set_fake_redis_delay(Config, 0),
+    application:set_env(rabbitmq_mqtt, acl_timeout, 2000),
+    timer:sleep(800),
+    {ok, _} = rabbit_mqtt_acl_redis:fetch_acl(<<"client4">>),
+    closed = proplists:get_value(state, breaker_info()).
+
+stale_rules_are_used_while_redis_is_down(Config) ->
+    application:set_env(rabbitmq_mqtt, acl_cache_ttl, 50),
+    {ok, _} = Acl = rabbit_mqtt_acl_redis:fetch_acl(<<"client1">>),
+    timer:sleep(100),
+    set_fake_redis_delay(Config, 300),
+    application:set_env(rabbitmq_mqtt, acl_timeout, 50),
+    {error, timeout} = rabbit_mqtt_acl_redis:fetch_acl(<<"client1">>),
+    Acl = rabbit_mqtt_acl_redis:fallback_acl(<<"client1">>, timeout),
+    {error, timeout} = rabbit_mqtt_acl_redis:fallback_acl(<<"client2">>, timeout).
+
+failure_policy(_Config) ->
+    application:set_env(rabbitmq_mqtt, acl_failure_policy, allow),
+    Acl = rabbit_mqtt_acl_redis:fallback_acl(<<"client1">>, timeout),
+    allow = rabbit_mqtt_acl_redis:check_acl(Acl, publish, <<"a/b">>),
+    allow = rabbit_mqtt_acl_redis:check_acl(Acl, subscribe, <<"a/#">>),
+    {deny, _} = rabbit_mqtt_acl_redis:check_acl(Acl, publish, <<"$SYS/a">>),
+    application:set_env(rabbitmq_mqtt, acl_failure_policy, deny),
+    {error, timeout} = rabbit_mqtt_acl_redis:fallback_acl(<<"client1">>, timeout).
+
+breaker_info() ->
+    rabbit_mqtt_acl_breaker:info().
+
+prefetch_overlaps_other_work(Config) ->
+    set_fake_redis_delay(Config, 200),
+    {Micros, {ok, _}} =
+        timer:tc(fun () ->
+                         Fetch = rabbit_mqtt_acl_redis:prefetch_acl(<<"client1">>),
+                         %% stands in for the AMQP login
+                         timer:sleep(200),
+                         rabbit_mqtt_acl_redis:await_acl(Fetch)
+                 end),
+    ?assert(Micros < 350000),
+    %% now cached, nothing left to wait for
+    {done, {ok, _}} = rabbit_mqtt_acl_redis:prefetch_acl(<<"client1">>).
+
+%% The rules read by a round trip that was under way when the client
+%% was invalidated must not end up in the cache, and a fetch coming
+%% after the invalidation must not be answered with them either.
+invalidation_during_fetch_is_not_undone(Config) ->
+    set_fake_redis_delay(Config, 300),
+    Before = fake_redis_commands(Config),
+    Self = self(),
+    spawn(fun () ->
+                  Self ! {first, rabbit_mqtt_acl_redis:fetch_acl(<<"client1">>)}
+          end),
+    timer:sleep(100),
+    ok = rabbit_mqtt_acl_cache:delete(<<"client1">>),
+    spawn(fun () ->
+                  Self ! {second, rabbit_mqtt_acl_redis:fetch_acl(<<"client1">>)}
+          end),
+    {ok, _} = receive {first, Acl1} -> Acl1 end,
+    not_found = rabbit_mqtt_acl_cache:lookup(<<"client1">>),
+    {ok, _} = receive {second, Acl2} -> Acl2 end,
+    ?assertEqual(2, fake_redis_commands(Config) - Before),
+    ?assertEqual(2, proplists:get_value(round_trips, rabbit_mqtt_acl_loader:info())),
+    %% the second round trip started after the invalidation
+    {ok, _} = rabbit_mqtt_acl_cache:lookup(<<"client1">>).
+
+fetch_concurrently(ClientIds) ->
+    Self = self(),
+    Pids = [spawn(fun () ->
+                          Self ! {fetched, self(),
+                                  rabbit_mqtt_acl_redis:fetch_acl(ClientId)}
+                  end) || ClientId <- ClientIds],
+    [receive {fetched, Pid, Acl} -> Acl end || Pid <- Pids].
+
+%% A minimal stand-in for redis that answers every command with Rules
+%% after an adjustable delay and counts the commands it has seen.
+fake_redis(Rules) ->
+    Self = self(),
+    Pid = spawn(fun () ->
+                        {ok, LSock} = gen_tcp:listen(0, [binary, {packet, line},
+                                                         {active, false},
+                                                         {reuseaddr, true}]),
+                        {ok, Port} = inet:port(LSock),
+                        Counter = self(),
+                        spawn_link(fun () ->
+                                           fake_redis_accept(LSock, Counter, Rules)
+                                   end),
+                        Self ! {fake_redis, self(), Port},
+                        fake_redis_loop(0, 0)
+                end),
+    receive {fake_redis, Pid, Port} -> {Pid, Port} end.
+
+fake_redis_commands(Config) ->
+    ?config(fake_redis, Config) ! {count, self()},
+    receive {fake_redis_count, N} -> N end.
+
+set_fake_redis_delay(Config, Delay) ->
+    ?config(fake_redis, Config) ! {delay, Delay}.
+
+fake_redis_loop(N, Delay) ->
+    receive
+        {command, From} -> From ! {fake_redis_delay, Delay},
+                           fake_redis_loop(N + 1, Delay);
+        {delay, Delay1} -> fake_redis_loop(N, Delay1);
+        {count, From}   -> From ! {fake_redis_count, N},
+                           fake_redis_loop(N, Delay);
+        stop            -> ok
+    end.
+
+fake_redis_accept(LSock, Counter, Rules) ->
+    {ok, Sock} = gen_tcp:accept(LSock),
+    Pid = spawn(fun () ->
+                        receive go -> ok end,
+                        fake_redis_serve(Sock, Counter, Rules)
+                end),
+    ok = gen_tcp:controlling_process(Sock, Pid),
+    Pid ! go,
+    fake_redis_accept(LSock, Counter, Rules).
+
+fake_redis_serve(Sock, Counter, Rules) ->
+    case gen_tcp:recv(Sock, 0) of
+        {ok, <<"*", Argc/binary>>} ->
+            [{ok, _} = gen_tcp:recv(Sock, 0)
+             || _ <- lists:seq(1, 2 * binary_to_integer(strip_crlf(Argc)))],
+            Counter ! {command, self()},
+            receive {fake_redis_delay, Delay} -> timer:sleep(Delay) end,
+            ok = gen_tcp:send(Sock, [$*, integer_to_list(length(Rules)), "\r\n" |
+                                     [[$$, integer_to_list(byte_size(R)), "\r\n",
+                                       R, "\r\n"] || R <- Rules]]),
+            fake_redis_serve(Sock, Counter, Rules);
+        {error, _} ->
+            ok
+    end.
+
+strip_crlf(Line) ->
+    binary:part(Line, 0, byte_size(Line) - 2).
+
+%% -------------------------------------------------------------------
+%% Invalidation
+%% -------------------------------------------------------------------
+
+keyspace_notification_evicts_client(Config) ->
+    Redis = ?config(redis, Config),
+    ok = rabbit_mqtt_acl_cache:insert(<<"client1">>, {ok, []}),
+    ok = rabbit_mqtt_acl_cache:insert(<<"client2">>, {ok, []}),
+    %% let the subscription settle
+    timer:sleep(200),
+    {ok, _} = eredis:q(Redis, ["HSET", "mqtt_acl:client1", "topic1", "3"]),
+    ok = await_evicted(<<"client1">>, 50),
+    {ok, _} = rabbit_mqtt_acl_cache:lookup(<<"client2">>),
+    %% removing the rules ("g" event) also evicts
+    ok = rabbit_mqtt_acl_cache:insert(<<"client1">>, {ok, []}),
+    {ok, <<"1">>} = eredis:q(Redis, ["DEL", "mqtt_acl:client1"]),
+    ok = await_evicted(<<"client1">>, 50),
+    %% and so does their expiry ("x" event)
+    {ok, _} = eredis:q(Redis, ["HSET", "mqtt_acl:client1", "topic1", "3"]),
+    timer:sleep(100),
+    ok = rabbit_mqtt_acl_cache:insert(<<"client1">>, {ok, []}),
+    {ok, <<"1">>} = eredis:q(Redis, ["PEXPIRE", "mqtt_acl:client1", "50"]),
+    ok = await_evicted(<<"client1">>, 50),
+    {ok, _} = rabbit_mqtt_acl_cache:lookup(<<"client2">>).
+
+channel_message_evicts_client(Config) ->
+    Redis = ?config(redis, Config),
+    ok = rabbit_mqtt_acl_cache:insert(<<"client1">>, {ok, []}),
+    ok = rabbit_mqtt_acl_cache:insert(<<"client2">>, {ok, []}),
+    timer:sleep(200),
+    {ok, _} = eredis:q(Redis, ["PUBLISH", "mqtt_acl_test", "client1"]),
+    ok = await_evicted(<<"client1">>, 50),
+    {ok, _} = rabbit_mqtt_acl_cache:lookup(<<"client2">>).
+
+await_evicted(ClientId, 0) ->
+    throw({still_cached, ClientId});
+await_evicted(ClientId, N) ->
+    case rabbit_mqtt_acl_cache:lookup(ClientId) of
+        not_found -> ok;
+        {ok, _}   -> timer:sleep(20),
+                     await_evicted(ClientId, N - 1)
+    end.
@@ -0,0 +1,187 @@
+%% The contents of this file are subject to the Mozilla Public License
+%% Version 1.1 (the "License"); you may not use this file except in
+%% compliance with the License. You may obtain a copy of the License
+%% at http://www.mozilla.org/MPL/
+%%
+%% Software distributed under the License is distributed on an "AS IS"
+%% basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+%% the License for the specific language governing rights and
+%% limitations under the License.
+%%
+%% The Original Code is RabbitMQ.
+%%
+%% The Initial Developer of the Original Code is GoPivotal, Inc.
+%% Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+
+-module(admission_SUITE).
+-compile([export_all]).
+
+-include_lib("common_test/include/ct.hrl").
+-include_lib("eunit/include/eunit.hrl").
+
+all() ->
+    [
+      {group, non_parallel_tests}
+    ].
+
+groups() ->
+    [
+      {non_parallel_tests, [], [
+                                concurrency_is_limited,
+                                rate_is_limited,
+                                full_line_is_refused,
+                                line_times_out,
+                                dead_connection_frees_its_slot,
+                                earlier_wake_up_replaces_later_one,
+                                zero_rate_is_refused
+                               ]}
+    ].
+
+suite() ->
+    [{timetrap, {seconds, 30}}].
+
+init_per_suite(Config) -> Config.
+end_per_suite(Config) -> Config.
+init_per_group(_, Config) -> Config.
+end_per_group(_, Config) -> Config.
+
+init_per_testcase(Testcase, Config) ->
+    application:set_env(rabbitmq_mqtt, connect_admission, limits(Testcase)),
+    {ok, Pid} = rabbit_mqtt_admission:start_link(),
+    unlink(Pid),
+    [{admission, Pid} | Config].
+
+end_per_testcase(_, Config) ->
+    Pid = ?config(admission, Config),
+    MRef = erlang:monitor(process, Pid),
+    exit(Pid, kill),
+    receive {'DOWN', MRef, process, Pid, _} -> ok end,
+    application:unset_env(rabbitmq_mqtt, connect_admission),
+    Config.
+
+limits(concurrency_is_limited)             -> [{max_concurrent, 2}, {rate, infinity}];
+limits(rate_is_limited)                    -> [{rate, 10}, {burst, 2}];
+limits(full_line_is_refused)               -> [{max_concurrent, 1}, {max_queued, 1}];
+limits(line_times_out)                     -> [{max_concurrent, 1}, {queue_timeout, 100}];
+limits(dead_connection_frees_its_slot)     -> [{max_concurrent, 1}, {rate, infinity}];
+limits(earlier_wake_up_replaces_later_one) -> [{max_concurrent, 1}, {rate, 10},
+                                               {burst, 1}, {queue_timeout, 5000}];
+limits(_)                                  -> [].
+
+%% -------------------------------------------------------------------
+%% Testsuite cases
+%% -------------------------------------------------------------------
+
+concurrency_is_limited(_Config) ->
+    A = connect(),
+    B = connect(),
+    {ok, _} = admitted(A),
+    {ok, _} = admitted(B),
+    C = connect(),
+    waiting = admitted(C, 200),
+    finish(A),
+    {ok, _} = admitted(C),
+    [finish(P) || P <- [B, C]],
+    ok.
+
+rate_is_limited(_Config) ->
+    [A, B] = [connect(), connect()],
+    {ok, _} = admitted(A),
+    {ok, _} = admitted(B),
+    Start = time_compat:monotonic_time(milli_seconds),
+    C = connect(),
+    {ok, _} = admitted(C),
+    %% 10 a second: the next token comes after 100 ms
+    ?assert(time_compat:monotonic_time(milli_seconds) - Start >= 90),
+    [finish(P) || P <- [A, B, C]],
+    ok.
+
+full_line_is_refused(_Config) ->
+    A = connect(),
+    {ok, _} = admitted(A),
+    B = connect(),
+    waiting = admitted(B, 100),
+    C = connect(),
+    {error, overloaded} = admitted(C),
+    finish(C),
+    finish(A),
+    {ok, _} = admitted(B),
+    finish(B),
+    [{running, 0}, {waiting, 0} | _] = rabbit_mqtt_admission:info(),
+    1 = proplists:get_value(rejected, rabbit_mqtt_admission:info()),
+    ok.
+
+line_times_out(_Config) ->
+    A = connect(),
+    {ok, _} = admitted(A),
+    B = connect(),
+    {error, timeout} = admitted(B, 1000),
+    finish(A),
+    ok.
+
+dead_connection_frees_its_slot(_Config) ->
+    A = connect(),
+    {ok, _} = admitted(A),
+    B = connect(),
+    waiting = admitted(B, 100),
+    exit(A, kill),
+    {ok, _} = admitted(B),
+    finish(B),
+    ok.
+
+%% B waits for A's slot with a token in hand, so the wake-up is its
+%% deadline. Once B is in, C needs a token, due much earlier.
+earlier_wake_up_replaces_later_one(_Config) ->
+    A = connect(),
+    {ok, _} = admitted(A),
+    B = connect(),
+    waiting = admitted(B, 300),
+    C = connect(),
+    waiting = admitted(C, 50),
+    finish(A),
+    {ok, _} = admitted(B),
+    finish(B),
+    {ok, _} = admitted(C, 1000),
+    finish(C),
+    ok.
+
+zero_rate_is_refused(_Config) ->
+    application:set_env(rabbitmq_mqtt, connect_admission, [{rate, 0}]),
+    {error, {invalid_connect_admission, {rate, 0}}} =
+        gen_server:start(rabbit_mqtt_admission, [], []),
+    ok.
+
+%% -------------------------------------------------------------------
+
+%% A connection asking to be admitted, which reports the answer and
+%% then waits to be told it is done setting up.
+connect() ->
+    Self = self(),
+    spawn(fun () ->
+                  Result = rabbit_mqtt_admission:admit(),
+                  Self ! {admitted, self(), Result},
+                  receive
+                      finish -> case Result of
+                                    {ok, Ticket} -> rabbit_mqtt_admission:done(Ticket);
+                                    _            -> ok
+                                end
+                  end
+          end).
+
+admitted(Pid) ->
+    admitted(Pid, 1000).
+
+admitted(Pid, Timeout) ->
+    receive
+        {admitted, Pid, Result} -> Result
+    after Timeout ->
+        waiting
+    end.
+
+finish(Pid) ->
+    MRef = erlang:monitor(process, Pid),
+    Pid ! finish,
+    receive {'DOWN', MRef, process, Pid, _} -> ok end,
+    %% done/1 is a cast, let it get there
+    _ = rabbit_mqtt_admission:info(),
+    ok.
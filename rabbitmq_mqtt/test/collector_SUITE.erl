@@ -0,0 +1,134 @@
+%% The contents of this file are subject to the Mozilla Public License
+%% Version 1.1 (the "License"); you may not use this file except in
+%% compliance with the License. You may obtain a copy of the License
+%% at http://www.mozilla.org/MPL/
+%%
+%% Software distributed under the License is distributed on an "AS IS"
+%% basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+%% the License for the specific language governing rights and
+%% limitations under the License.
+%%
+%% The Original Code is RabbitMQ.
+%%
+%% The Initial Developer of the Original Code is GoPivotal, Inc.
+%% Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+%%
+
+-module(collector_SUITE).
+-compile([export_all]).
+
+-include_lib("common_test/include/ct.hrl").
+-include_lib("eunit/include/eunit.hrl").
+
+all() ->
+    [
+      {group, non_parallel_tests}
+    ].
+
+groups() ->
+    [
+      {non_parallel_tests, [], [
+                                register_and_lookup,
+                                duplicate_id_replaces_old_connection,
+                                unregister_only_own_entry,
+                                down_connections_are_removed,
+                                mass_disconnect
+                               ]}
+    ].
+
+suite() ->
+    [{timetrap, {seconds, 60}}].
+
+init_per_suite(Config) -> Config.
+end_per_suite(Config) -> Config.
+init_per_group(_, Config) -> Config.
+end_per_group(_, Config) -> Config.
+
+init_per_testcase(_, Config) ->
+    Pids = [begin
+                {ok, Pid} = rabbit_mqtt_collector:start_link(Stripe),
+                unlink(Pid),
+                Pid
+            end || Stripe <- lists:seq(1, rabbit_mqtt_collector:stripes())],
+    [{pids, Pids} | Config].
+
+end_per_testcase(_, Config) ->
+    [begin
+         MRef = erlang:monitor(process, Pid),
+         exit(Pid, kill),
+         receive {'DOWN', MRef, process, Pid, _} -> ok end
+     end || Pid <- ?config(pids, Config)],
+    Config.
+
+register_and_lookup(_Config) ->
+    {error, not_found} = rabbit_mqtt_collector:lookup(<<"client1">>),
+    ok = rabbit_mqtt_collector:register(<<"client1">>, self()),
+    {ok, Self} = rabbit_mqtt_collector:lookup(<<"client1">>),
+    Self = self(),
+    %% registering again is a no-op
+    ok = rabbit_mqtt_collector:register(<<"client1">>, self()),
+    {ok, Self} = rabbit_mqtt_collector:lookup(<<"client1">>).
+
+duplicate_id_replaces_old_connection(_Config) ->
+    Old = connection(),
+    ok = rabbit_mqtt_collector:register(<<"client1">>, Old),
+    ok = rabbit_mqtt_collector:register(<<"client1">>, self()),
+    {ok, Self} = rabbit_mqtt_collector:lookup(<<"client1">>),
+    Self = self(),
+    Old ! {tell, self()},
+    receive {Old, {'$gen_cast', duplicate_id}} -> ok
+    after 5000 -> throw(old_connection_not_told)
+    end,
+    %% the old connection going away must not remove the new entry
+    kill(Old),
+    {ok, Self} = sync_lookup(<<"client1">>).
+
+unregister_only_own_entry(_Config) ->
+    Other = connection(),
+    ok = rabbit_mqtt_collector:register(<<"client1">>, self()),
+    ok = rabbit_mqtt_collector:unregister(<<"client1">>, Other),
+    {ok, _} = sync_lookup(<<"client1">>),
+    ok = rabbit_mqtt_collector:unregister(<<"client1">>, self()),
+    {error, not_found} = sync_lookup(<<"client1">>),
+    kill(Other).
+
+down_connections_are_removed(_Config) ->
+    Pid = connection(),
+    ok = rabbit_mqtt_collector:register(<<"client1">>, Pid),
+    kill(Pid),
+    {error, not_found} = sync_lookup(<<"client1">>).
+
+mass_disconnect(_Config) ->
+    N = 20000,
+    Pids = [begin
+                Pid = connection(),
+                ok = rabbit_mqtt_collector:register(integer_to_binary(I), Pid),
+                Pid
+            end || I <- lists:seq(1, N)],
+    {Micros, ok} = timer:tc(fun () ->
+                                    [kill(Pid) || Pid <- Pids],
+                                    [{error, not_found} = sync_lookup(integer_to_binary(I))
+                                     || I <- lists:seq(1, N)],
+                                    ok
+                            end),
+    ct:pal("~p disconnects cleaned up in ~p ms~n", [N, Micros div 1000]).
+
+%% A stand-in connection process that forwards what it gets when asked.
+connection() ->
+    spawn(fun () ->
+                  receive {tell, To} ->
+                          receive Msg -> To ! {self(), Msg} end
+                  end
+          end).
+
+kill(Pid) ->
+    MRef = erlang:monitor(process, Pid),
+    exit(Pid, kill),
+    receive {'DOWN', MRef, process, Pid, _} -> ok end.
+
+%% Lookups are plain table reads, wait for the stripe to have processed
+%% what was sent to it before.
+sync_lookup(ClientId) ->
+    [_ = sys:get_state(rabbit_mqtt_collector:name(Stripe))
+     || Stripe <- lists:seq(1, rabbit_mqtt_collector:stripes())],
+    rabbit_mqtt_collector:lookup(ClientId).
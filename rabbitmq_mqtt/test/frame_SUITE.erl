@@ -0,0 +1,171 @@
+%% The contents of this file are subject to the Mozilla Public License
+%% Version 1.1 (the "License"); you may not use this file except in
+%% compliance with the License. You may obtain a copy of the License
+%% at http://www.mozilla.org/MPL/
+%%
+%% Software distributed under the License is distributed on an "AS IS"
+%% basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+%% the License for the specific language governing rights and
+%% limitations under the License.
+%%
+%% The Original Code is RabbitMQ.
+%%
+%% The Initial Developer of the Original Code is GoPivotal, Inc.
+%% Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+
+-module(frame_SUITE).
+-compile([export_all]).
+
+-include_lib("common_test/include/ct.hrl").
+-include_lib("eunit/include/eunit.hrl").
+-include("rabbit_mqtt_frame.hrl").
+
+all() ->
+    [
+      {group, parsing},
+      {group, benchmarks}
+    ].
+
+groups() ->
+    [
+      {parsing, [], [
+                     split_anywhere,
+                     large_publish_in_segments,
+                     frames_back_to_back
+                    ]},
+      {benchmarks, [], [
+                        publish_payload_sizes,
+                        publish_topic_as_binary
+                       ]}
+    ].
+
+suite() ->
+    [{timetrap, {minutes, 5}}].
+
+init_per_suite(Config) -> Config.
+end_per_suite(Config) -> Config.
+init_per_group(_, Config) -> Config.
+end_per_group(_, Config) -> Config.
+init_per_testcase(_, Config) -> Config.
+end_per_testcase(_, Config) -> Config.
+
+%% TCP segment payload size of a typical ethernet link
+-define(SEGMENT, 1460).
+
+%% -------------------------------------------------------------------
+%% Parsing
+%% -------------------------------------------------------------------
+
+split_anywhere(_Config) ->
+    Payload = binary:copy(<<"x">>, 300),
+    Bin = publish(<<"some/topic">>, Payload),
+    [begin
+         <<A:N/binary, B/binary>> = Bin,
+         {ok, Frame, <<>>} = feed([A, B]),
+         Payload = Frame#mqtt_frame.payload
+     end || N <- lists:seq(0, byte_size(Bin))].
+
+large_publish_in_segments(_Config) ->
+    Payload = crypto:rand_bytes(1024 * 1024),
+    {ok, #mqtt_frame{variable = #mqtt_frame_publish{topic_name = <<"firmware">>},
+                     payload  = Payload}, <<>>} =
+        feed(segments(publish(<<"firmware">>, Payload), ?SEGMENT)).
+
+frames_back_to_back(_Config) ->
+    First = publish(<<"a">>, binary:copy(<<"1">>, 5000)),
+    Second = publish(<<"b">>, <<"2">>),
+    {ok, #mqtt_frame{payload = <<"1", _/binary>>}, Rest} =
+        feed(segments(<<First/binary, Second/binary>>, ?SEGMENT)),
+    {ok, #mqtt_frame{payload = <<"2">>}, <<>>} =
+        rabbit_mqtt_frame:parse(Rest, rabbit_mqtt_frame:initial_state()).
+
+%% -------------------------------------------------------------------
+%% Benchmarks
+%% -------------------------------------------------------------------
+
+%% Time to parse a PUBLISH arriving in TCP sized segments, which should
+%% grow linearly with the payload.
+publish_payload_sizes(_Config) ->
+    Results = [begin
+                   Chunks = segments(publish(<<"bench">>, binary:copy(<<0>>, Size)), ?SEGMENT),
+                   Micros = best_of(5, fun () -> {ok, _, <<>>} = feed(Chunks) end),
+                   ct:pal("~10b byte payload: ~8b us, ~6.1f ns/byte~n",
+                          [Size, Micros, Micros * 1000 / Size]),
+                   {Size, Micros}
+               end || Size <- [1024, 16384, 131072, 1048576, 8388608]],
+    {comment, lists:flatten([io_lib:format("~b:~bus ", [S, M]) || {S, M} <- Results])}.
+
+%% Reductions per message spent turning the topic of a PUBLISH into a
+%% routing key, and heap words of the topic the frame carries, now that
+%% the parser keeps the binary it reads, against the charlist it used
+%% to return and the regex based translation that went with it.
+publish_topic_as_binary(_Config) ->
+    Topic = <<"sensors/building-1/floor-3/+/temperature">>,
+    RoutingKey = <<"sensors.building-1.floor-3.*.temperature">>,
+    {ok, #mqtt_frame{variable = #mqtt_frame_publish{topic_name = Bin}}, <<>>} =
+        feed([publish(Topic, <<"21.5">>)]),
+    RoutingKey = rabbit_mqtt_util:mqtt2amqp(Bin),
+    RoutingKey = charlist_mqtt2amqp(binary_to_list(Bin)),
+    BinaryReds = reductions(fun () -> rabbit_mqtt_util:mqtt2amqp(Bin) end),
+    CharlistReds = reductions(fun () -> charlist_mqtt2amqp(binary_to_list(Bin)) end),
+    BinaryWords = erts_debug:flat_size(Bin),
+    CharlistWords = erts_debug:flat_size(binary_to_list(Bin)),
+    ct:pal("binary topic:   ~6.1f reductions, ~4b heap words~n"
+           "charlist topic: ~6.1f reductions, ~4b heap words~n",
+           [BinaryReds, BinaryWords, CharlistReds, CharlistWords]),
+    ?assert(BinaryWords < CharlistWords),
+    {comment, lists:flatten(
+                io_lib:format("binary ~.1f reds ~b words, charlist ~.1f reds ~b words",
+                              [BinaryReds, BinaryWords, CharlistReds, CharlistWords]))}.
+
+%% What rabbit_mqtt_util:mqtt2amqp/1 did with charlist topics.
+charlist_mqtt2amqp(Topic) ->
+    erlang:iolist_to_binary(
+      re:replace(re:replace(Topic, "/", ".", [global]),
+                 "[\+]", "*", [global])).
+
+%% Average reductions of a call of Fun, in a process of its own.
+reductions(Fun) ->
+    N = 10000,
+    Self = self(),
+    Pid = spawn_link(fun () ->
+                             {reductions, R0} = process_info(self(), reductions),
+                             times(N, Fun),
+                             {reductions, R1} = process_info(self(), reductions),
+                             Self ! {reductions, self(), (R1 - R0) / N}
+                     end),
+    receive {reductions, Pid, Reds} -> Reds end.
+
+times(0, _Fun) -> ok;
+times(N, Fun)  -> Fun(),
+                  times(N - 1, Fun).
+
+best_of(N, Fun) ->
+    lists:min([element(1, timer:tc(Fun)) || _ <- lists:seq(1, N)]).
+
+%% -------------------------------------------------------------------
+
+publish(Topic, Payload) ->
+    rabbit_mqtt_frame:serialise(
+      #mqtt_frame{fixed    = #mqtt_frame_fixed{type = ?PUBLISH, qos = 0},
+                  variable = #mqtt_frame_publish{topic_name = Topic},
+                  payload  = Payload}).
+
+segments(Bin, Size) when byte_size(Bin) =< Size ->
+    [Bin];
+segments(Bin, Size) ->
+    <<Segment:Size/binary, Rest/binary>> = Bin,
+    [Segment | segments(Rest, Size)].
+
+%% Feeds the chunks to the parser the way the reader does.
+feed(Chunks) ->
+    feed(Chunks, rabbit_mqtt_frame:initial_state()).
+
+feed([Chunk | Chunks], State) ->
+    case rabbit_mqtt_frame:parse(Chunk, State) of
+        {more, State1}      -> feed(Chunks, State1);
+        {ok, Frame, Rest}   -> {ok, Frame, iolist_to_binary([Rest | Chunks])};
+        {error, _} = Error  -> Error
+    end;
+feed([], _State) ->
+    more.
@@ -0,0 +1,105 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+//
+
+package com.rabbitmq.mqtt.test.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The ACL rules of the benchmark clients, in the layout the broker reads
+ * with its default <code>acl_cmd</code>: a hash <code>mqtt_acl:ClientId</code>
+ * of topic filter to access, 1 subscribe, 2 publish, 3 both. Every client
+ * gets the rule it needs plus filler rules up to the configured count, so
+ * that the size of the rule sets the broker compiles and checks against
+ * can be varied.
+ */
+public class AclRules {
+
+    static final String SUBSCRIBE = "1";
+    static final String PUBLISH = "2";
+    static final String BOTH = "3";
+
+    private final BenchmarkConfig config;
+
+    AclRules(BenchmarkConfig config) {
+        this.config = config;
+    }
+
+    static String key(String clientId) {
+        return "mqtt_acl:" + clientId;
+    }
+
+    Map<String, Map<String, String>> all() {
+        Map<String, Map<String, String>> rules = new LinkedHashMap<String, Map<String, String>>();
+        for (int i = 0; i < config.publishers; i++) {
+            rules.put(config.publisherId(i), rules("bench/t/+", PUBLISH));
+        }
+        for (int i = 0; i < config.subscribers; i++) {
+            rules.put(config.subscriberId(i), rules(config.topic(i / config.fanout), SUBSCRIBE));
+        }
+        return rules;
+    }
+
+    private Map<String, String> rules(String filter, String access) {
+        Map<String, String> rules = new LinkedHashMap<String, String>();
+        for (int i = 1; i < config.aclRules; i++) {
+            rules.put("bench/filler/" + i + "/+", BOTH);
+        }
+        rules.put(filter, access);
+        return rules;
+    }
+
+    void load(RedisStandIn redis) {
+        for (Map.Entry<String, Map<String, String>> e : all().entrySet()) {
+            redis.hset(key(e.getKey()), e.getValue());
+        }
+    }
+
+    /** Replaces the rules of the benchmark clients on a redis-server. */
+    void load(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            int sent = 0;
+            for (Map.Entry<String, Map<String, String>> e : all().entrySet()) {
+                String key = key(e.getKey());
+                RedisStandIn.writeCommand(out, "DEL", key);
+                sent++;
+                for (Map.Entry<String, String> rule : e.getValue().entrySet()) {
+                    RedisStandIn.writeCommand(out, "HSET", key, rule.getKey(), rule.getValue());
+                    sent++;
+                }
+            }
+            out.flush();
+            for (int i = 0; i < sent; i++) {
+                String reply = RedisStandIn.readLine(in);
+                if (reply.startsWith("-")) {
+                    throw new IOException("redis refused the ACL rules: " + reply);
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+//
+
+package com.rabbitmq.mqtt.test.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Benchmark settings, read from <code>bench.*</code> system properties.
+ */
+public class BenchmarkConfig {
+
+    /** Where the ACL rules come from. */
+    public enum RedisMode {
+        /** an in-process stand-in listening on redisPort */
+        STANDIN,
+        /** a redis-server at redisHost:redisPort, seeded with the rules */
+        EXTERNAL,
+        /** the broker's ACLs are left alone */
+        NONE
+    }
+
+    final String host;
+    final int port;
+    final String username;
+    final String password;
+
+    final int publishers;
+    final int subscribers;
+    final int fanout;
+    final double rate;
+    final int qos;
+    final int payloadSize;
+    final int durationSeconds;
+    final int warmupSeconds;
+
+    final int connectParallelism;
+    final int connectTimeoutSeconds;
+
+    final RedisMode redisMode;
+    final String redisHost;
+    final int redisPort;
+    final int aclRules;
+
+    final String output;
+
+    BenchmarkConfig() {
+        host = string("bench.host", "localhost");
+        port = integer("bench.port", integer("mqtt.port", 1883));
+        username = string("bench.username", "guest");
+        password = string("bench.password", "guest");
+
+        publishers = integer("bench.publishers", 100);
+        subscribers = integer("bench.subscribers", 1000);
+        fanout = Math.max(1, Math.min(subscribers, integer("bench.fanout", 10)));
+        rate = Double.parseDouble(string("bench.rate", "10"));
+        qos = integer("bench.qos", 1);
+        payloadSize = Math.max(MqttBenchmark.TIMESTAMP_SIZE, integer("bench.payload", 128));
+        durationSeconds = integer("bench.duration", 30);
+        warmupSeconds = integer("bench.warmup", 5);
+
+        connectParallelism = integer("bench.connect.parallelism", 64);
+        connectTimeoutSeconds = integer("bench.connect.timeout", 60);
+
+        redisMode = RedisMode.valueOf(string("bench.redis", "standin").toUpperCase());
+        redisHost = string("bench.redis.host", "localhost");
+        redisPort = integer("bench.redis.port", 6379);
+        aclRules = integer("bench.acl.rules", 10);
+
+        output = string("bench.output", "target/benchmark");
+
+        if (qos < 0 || qos > 1) {
+            throw new IllegalArgumentException("bench.qos must be 0 or 1, the broker downgrades 2 to 1");
+        }
+    }
+
+    /** Subscribers are spread over the topics fanout at a time. */
+    int topics() {
+        return (subscribers + fanout - 1) / fanout;
+    }
+
+    String topic(int n) {
+        return "bench/t/" + n;
+    }
+
+    String publisherId(int n) {
+        return "bench-pub-" + n;
+    }
+
+    String subscriberId(int n) {
+        return "bench-sub-" + n;
+    }
+
+    String brokerUrl() {
+        return "tcp://" + host + ":" + port;
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        m.put("broker", brokerUrl());
+        m.put("publishers", publishers);
+        m.put("subscribers", subscribers);
+        m.put("fanout", fanout);
+        m.put("topics", topics());
+        m.put("rate_per_publisher", rate);
+        m.put("qos", qos);
+        m.put("payload_bytes", payloadSize);
+        m.put("duration_s", durationSeconds);
+        m.put("warmup_s", warmupSeconds);
+        m.put("connect_parallelism", connectParallelism);
+        m.put("redis", redisMode.name().toLowerCase());
+        m.put("acl_rules_per_client", aclRules);
+        return m;
+    }
+
+    private static String string(String key, String def) {
+        String value = System.getProperty(key);
+        // unset maven properties come through as empty or as ${...}
+        return value == null || value.isEmpty() || value.startsWith("${") ? def : value;
+    }
+
+    private static int integer(String key, int def) {
+        return Integer.parseInt(string(key, Integer.toString(def)));
+    }
+}
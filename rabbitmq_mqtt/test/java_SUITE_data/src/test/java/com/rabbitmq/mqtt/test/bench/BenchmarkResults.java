@@ -0,0 +1,134 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+//
+
+package com.rabbitmq.mqtt.test.bench;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the figures of a run and writes them as JSON, next to the
+ * full percentile distributions of the histograms (.hgrm, as plotted by
+ * the HdrHistogram tools).
+ */
+public class BenchmarkResults {
+
+    private final Map<String, Object> sections = new LinkedHashMap<String, Object>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+
+    void put(String section, Map<String, Object> values) {
+        sections.put(section, values);
+    }
+
+    /** Summary of a histogram of microseconds, given in milliseconds. */
+    void put(String section, Histogram h, Map<String, Object> extra) {
+        Map<String, Object> m = new LinkedHashMap<String, Object>(extra);
+        m.put("count", h.getTotalCount());
+        m.put("min_ms", ms(h.getMinValue()));
+        m.put("mean_ms", ms(h.getMean()));
+        m.put("p50_ms", ms(h.getValueAtPercentile(50)));
+        m.put("p90_ms", ms(h.getValueAtPercentile(90)));
+        m.put("p99_ms", ms(h.getValueAtPercentile(99)));
+        m.put("p999_ms", ms(h.getValueAtPercentile(99.9)));
+        m.put("max_ms", ms(h.getMaxValue()));
+        sections.put(section, m);
+        histograms.put(section, h);
+    }
+
+    void write(String base) throws IOException {
+        File json = new File(base + ".json");
+        File dir = json.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        Writer w = new OutputStreamWriter(new FileOutputStream(json), "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            json(sb, sections, "");
+            w.write(sb.append('\n').toString());
+        } finally {
+            w.close();
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            PrintStream out = new PrintStream(new FileOutputStream(base + "-" + e.getKey() + ".hgrm"), false, "UTF-8");
+            try {
+                e.getValue().outputPercentileDistribution(out, 1000.0);
+            } finally {
+                out.close();
+            }
+        }
+        System.out.println("results written to " + json.getPath());
+    }
+
+    void print(PrintStream out) {
+        for (Map.Entry<String, Object> e : sections.entrySet()) {
+            out.println(e.getKey() + ": " + e.getValue());
+        }
+    }
+
+    private static double ms(double micros) {
+        return Math.round(micros) / 1000.0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void json(StringBuilder sb, Object value, String indent) {
+        if (value instanceof Map) {
+            Map<String, Object> m = (Map<String, Object>) value;
+            sb.append("{");
+            String sep = "\n";
+            for (Map.Entry<String, Object> e : m.entrySet()) {
+                sb.append(sep).append(indent).append("  ");
+                string(sb, e.getKey());
+                sb.append(": ");
+                json(sb, e.getValue(), indent + "  ");
+                sep = ",\n";
+            }
+            sb.append(m.isEmpty() ? "}" : "\n" + indent + "}");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else if (value == null) {
+            sb.append("null");
+        } else {
+            string(sb, value.toString());
+        }
+    }
+
+    private static void string(StringBuilder sb, String s) {
+        sb.append('"');
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,334 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+//
+
+package com.rabbitmq.mqtt.test.bench;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * End to end load and latency benchmark: connects a storm of Paho
+ * clients, subscribers first, then has the publishers publish at a fixed
+ * rate across the topics, each of which has fanout subscribers, and
+ * measures
+ * <ul>
+ * <li>CONNECT to CONNACK times of the storm and its wall clock time,</li>
+ * <li>publish to deliver latency, from the timestamp at the start of
+ *     every payload to its arrival at each subscriber,</li>
+ * <li>throughput, and deliveries missing at the end of the run.</li>
+ * </ul>
+ * Only messages published after the warm-up and before the end of the
+ * run count, wherever they are delivered. Publishers and subscribers
+ * live in this JVM, so the timestamps need no clock sync.
+ * <p>
+ * Run with <code>make benchmark</code> against a broker whose ACLs point
+ * at <code>bench.redis.port</code>; settings are described in
+ * {@link BenchmarkConfig} and the README of the plugin. With the
+ * built-in {@link RedisStandIn} the broker should run with
+ * <pre>
+ * {rabbitmq_mqtt, [{redis, [{host, "127.0.0.1"}, {port, 6379}]},
+ *                  {acl_invalidation, none}]}
+ * </pre>
+ * the port being <code>bench.redis.port</code>: the stand-in confirms
+ * the subscriptions of <code>keyspace</code> and <code>{channel, _}</code>
+ * invalidation but never publishes a change, so there is nothing to
+ * listen for.
+ */
+public class MqttBenchmark {
+
+    static final int TIMESTAMP_SIZE = 8;
+
+    private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+    private final BenchmarkConfig config;
+
+    private final Histogram latency = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong publishErrors = new AtomicLong();
+    private final AtomicLongArray publishedPerTopic;
+
+    /** System.nanoTime() bounds of the measured window */
+    private volatile long windowStart = Long.MAX_VALUE;
+    private volatile long windowEnd = Long.MAX_VALUE;
+
+    public MqttBenchmark(BenchmarkConfig config) {
+        this.config = config;
+        this.publishedPerTopic = new AtomicLongArray(config.topics());
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkConfig config = new BenchmarkConfig();
+        BenchmarkResults results = new MqttBenchmark(config).run();
+        results.print(System.out);
+        results.write(config.output);
+    }
+
+    public BenchmarkResults run() throws Exception {
+        BenchmarkResults results = new BenchmarkResults();
+        results.put("config", config.toMap());
+
+        RedisStandIn redis = startRedis();
+        List<MqttAsyncClient> subscribers = new ArrayList<MqttAsyncClient>();
+        List<MqttAsyncClient> publishers = new ArrayList<MqttAsyncClient>();
+        ScheduledExecutorService scheduler = null;
+        try {
+            connectStorm("connect_subscribers", config.subscribers, true, subscribers, results);
+            connectStorm("connect_publishers", config.publishers, false, publishers, results);
+
+            scheduler = Executors.newScheduledThreadPool(
+                Math.min(config.publishers, 2 * Runtime.getRuntime().availableProcessors()));
+            startPublishing(scheduler, publishers);
+
+            TimeUnit.SECONDS.sleep(config.warmupSeconds);
+            long start = System.nanoTime();
+            windowStart = start;
+            TimeUnit.SECONDS.sleep(config.durationSeconds);
+            windowEnd = System.nanoTime();
+            scheduler.shutdown();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+
+            long expected = expectedDeliveries();
+            awaitDeliveries(expected);
+
+            double seconds = (windowEnd - start) / 1e9;
+            Map<String, Object> throughput = new LinkedHashMap<String, Object>();
+            throughput.put("published", published.get());
+            throughput.put("publish_errors", publishErrors.get());
+            throughput.put("expected_deliveries", expected);
+            throughput.put("delivered", delivered.get());
+            throughput.put("missing", expected - delivered.get());
+            throughput.put("publish_rate", Math.round(published.get() / seconds));
+            throughput.put("delivery_rate", Math.round(delivered.get() / seconds));
+            results.put("throughput", throughput);
+            results.put("latency", latency, new LinkedHashMap<String, Object>());
+            if (redis != null) {
+                Map<String, Object> r = new LinkedHashMap<String, Object>();
+                r.put("commands", redis.commands());
+                results.put("redis_standin", r);
+            }
+        } finally {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+            disconnectAll(publishers);
+            disconnectAll(subscribers);
+            if (redis != null) {
+                redis.stop();
+            }
+        }
+        return results;
+    }
+
+    private RedisStandIn startRedis() throws Exception {
+        AclRules rules = new AclRules(config);
+        switch (config.redisMode) {
+            case STANDIN:
+                RedisStandIn redis = new RedisStandIn();
+                rules.load(redis);
+                redis.start(config.redisPort);
+                return redis;
+            case EXTERNAL:
+                rules.load(config.redisHost, config.redisPort);
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Connects count clients at once, connectParallelism at a time, and
+     * records how long each took to get its CONNACK.
+     */
+    private void connectStorm(String section, int count, final boolean subscriber,
+                              List<MqttAsyncClient> clients, BenchmarkResults results) throws Exception {
+        final Histogram connects = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, config.connectParallelism));
+        List<Future<MqttAsyncClient>> futures = new ArrayList<Future<MqttAsyncClient>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int n = i;
+            futures.add(pool.submit(new Callable<MqttAsyncClient>() {
+                public MqttAsyncClient call() {
+                    String id = subscriber ? config.subscriberId(n) : config.publisherId(n);
+                    try {
+                        long t0 = System.nanoTime();
+                        MqttAsyncClient client = connect(id);
+                        connects.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t0));
+                        if (subscriber) {
+                            client.setCallback(new Receiver());
+                            client.subscribe(config.topic(n / config.fanout), config.qos)
+                                  .waitForCompletion(TimeUnit.SECONDS.toMillis(config.connectTimeoutSeconds));
+                        }
+                        return client;
+                    } catch (MqttException e) {
+                        if (failures.incrementAndGet() <= 10) {
+                            System.err.println(id + " failed to connect: " + e);
+                        }
+                        return null;
+                    }
+                }
+            }));
+        }
+        for (Future<MqttAsyncClient> f : futures) {
+            MqttAsyncClient client = f.get();
+            if (client != null) {
+                clients.add(client);
+            }
+        }
+        long wallMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        pool.shutdown();
+
+        Map<String, Object> extra = new LinkedHashMap<String, Object>();
+        extra.put("clients", count);
+        extra.put("failures", failures.get());
+        extra.put("wall_ms", wallMicros / 1000.0);
+        extra.put("connects_per_s", Math.round((count - failures.get()) * 1e6 / Math.max(1, wallMicros)));
+        results.put(section, connects, extra);
+        System.out.println(section + ": " + clients.size() + "/" + count + " in " + wallMicros / 1000 + " ms");
+    }
+
+    private MqttAsyncClient connect(String clientId) throws MqttException {
+        MqttAsyncClient client = new MqttAsyncClient(config.brokerUrl(), clientId, new MemoryPersistence());
+        MqttConnectOptions opts = new MqttConnectOptions();
+        opts.setUserName(config.username);
+        opts.setPassword(config.password.toCharArray());
+        opts.setCleanSession(true);
+        opts.setKeepAliveInterval(60);
+        opts.setConnectionTimeout(config.connectTimeoutSeconds);
+        opts.setMaxInflight(65535);
+        client.connect(opts).waitForCompletion(TimeUnit.SECONDS.toMillis(config.connectTimeoutSeconds));
+        return client;
+    }
+
+    private void startPublishing(ScheduledExecutorService scheduler, List<MqttAsyncClient> publishers) {
+        if (config.rate <= 0) {
+            return;
+        }
+        long periodNanos = Math.max(1, (long) (1e9 / config.rate));
+        for (int i = 0; i < publishers.size(); i++) {
+            final MqttAsyncClient client = publishers.get(i);
+            final int offset = i;
+            // spread the publishers over the period instead of all at once
+            long initialDelay = periodNanos * i / publishers.size();
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                private int next = offset;
+
+                public void run() {
+                    int topic = next++ % config.topics();
+                    publish(client, topic);
+                }
+            }, initialDelay, periodNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void publish(MqttAsyncClient client, int topic) {
+        long now = System.nanoTime();
+        byte[] payload = new byte[config.payloadSize];
+        ByteBuffer.wrap(payload).putLong(now);
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(config.qos);
+        try {
+            client.publish(config.topic(topic), message);
+            if (inWindow(now)) {
+                published.incrementAndGet();
+                publishedPerTopic.incrementAndGet(topic);
+            }
+        } catch (MqttException e) {
+            if (inWindow(now)) {
+                publishErrors.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean inWindow(long sentAt) {
+        return sentAt >= windowStart && sentAt < windowEnd;
+    }
+
+    private long expectedDeliveries() {
+        long expected = 0;
+        for (int t = 0; t < config.topics(); t++) {
+            int subscribers = Math.min(config.fanout, config.subscribers - t * config.fanout);
+            expected += publishedPerTopic.get(t) * subscribers;
+        }
+        return expected;
+    }
+
+    /** Waits for the deliveries in flight, until none arrive for a few seconds. */
+    private void awaitDeliveries(long expected) throws InterruptedException {
+        long last = -1;
+        int idle = 0;
+        while (delivered.get() < expected && idle < 5) {
+            TimeUnit.SECONDS.sleep(1);
+            long now = delivered.get();
+            idle = now == last ? idle + 1 : 0;
+            last = now;
+        }
+    }
+
+    private void disconnectAll(List<MqttAsyncClient> clients) {
+        for (MqttAsyncClient client : clients) {
+            try {
+                if (client.isConnected()) {
+                    client.disconnect(0).waitForCompletion(1000);
+                }
+                client.close();
+            } catch (MqttException ignored) {
+            }
+        }
+    }
+
+    private class Receiver implements MqttCallback {
+        public void connectionLost(Throwable cause) {
+            System.err.println("subscriber connection lost: " + cause);
+        }
+
+        public void messageArrived(String topic, MqttMessage message) {
+            long now = System.nanoTime();
+            long sentAt = ByteBuffer.wrap(message.getPayload()).getLong();
+            if (inWindow(sentAt)) {
+                latency.recordValue(Math.min(HIGHEST_MICROS, TimeUnit.NANOSECONDS.toMicros(now - sentAt)));
+                delivered.incrementAndGet();
+            }
+        }
+
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    }
+}
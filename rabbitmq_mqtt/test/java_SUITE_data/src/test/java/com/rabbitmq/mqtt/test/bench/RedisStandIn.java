@@ -0,0 +1,275 @@
+//  The contents of this file are subject to the Mozilla Public License
+//  Version 1.1 (the "License"); you may not use this file except in
+//  compliance with the License. You may obtain a copy of the License
+//  at http://www.mozilla.org/MPL/
+//
+//  Software distributed under the License is distributed on an "AS IS"
+//  basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+//  the License for the specific language governing rights and
+//  limitations under the License.
+//
+//  The Original Code is RabbitMQ.
+//
+//  The Initial Developer of the Original Code is GoPivotal, Inc.
+//  Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+//
+
+package com.rabbitmq.mqtt.test.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Just enough of a redis server, speaking RESP, for the broker's ACL
+ * connection pools: hashes (HGETALL, HSET, DEL) plus PING, AUTH,
+ * SELECT and CONFIG, which are accepted and ignored. Pipelined
+ * commands are answered in order, as redis does.
+ * <p>
+ * SUBSCRIBE and PSUBSCRIBE (and their UNSUBSCRIBE counterparts) are
+ * confirmed as redis would, so that the broker's ACL invalidation can
+ * connect, but nothing is ever published: the rules do not change
+ * during a run.
+ */
+public class RedisStandIn {
+
+    private static final byte[] OK = bytes("+OK\r\n");
+
+    private final ConcurrentHashMap<String, Map<String, String>> hashes =
+        new ConcurrentHashMap<String, Map<String, String>>();
+    private final List<Socket> connections = new ArrayList<Socket>();
+    private final AtomicLong commands = new AtomicLong();
+    private ServerSocket server;
+
+    public void start(int port) throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port), 1024);
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "redis-standin-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() throws IOException {
+        server.close();
+        synchronized (connections) {
+            for (Socket socket : connections) {
+                socket.close();
+            }
+        }
+    }
+
+    public void hset(String key, Map<String, String> fields) {
+        hashes.putIfAbsent(key, new ConcurrentHashMap<String, String>());
+        hashes.get(key).putAll(fields);
+    }
+
+    /** Commands served so far, including the broker's health checks. */
+    public long commands() {
+        return commands.get();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                synchronized (connections) {
+                    connections.add(socket);
+                }
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "redis-standin-" + socket.getPort());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            // channels and patterns this connection is subscribed to
+            Set<String> subscriptions = new HashSet<String>();
+            while (true) {
+                List<String> command = readCommand(in);
+                commands.incrementAndGet();
+                reply(command, subscriptions, out);
+                // only flush once the pipeline has been worked off
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // client went away
+        } catch (SocketException e) {
+            // stopped
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (connections) {
+                connections.remove(socket);
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void reply(List<String> command, Set<String> subscriptions, OutputStream out)
+        throws IOException {
+        String name = command.isEmpty() ? "" : command.get(0).toUpperCase();
+        if (name.equals("HGETALL") && command.size() == 2) {
+            Map<String, String> hash = hashes.get(command.get(1));
+            if (hash == null) {
+                out.write(bytes("*0\r\n"));
+            } else {
+                Map<String, String> copy = new LinkedHashMap<String, String>(hash);
+                out.write(bytes("*" + copy.size() * 2 + "\r\n"));
+                for (Map.Entry<String, String> e : copy.entrySet()) {
+                    writeBulk(out, e.getKey());
+                    writeBulk(out, e.getValue());
+                }
+            }
+        } else if (name.equals("HSET") && command.size() == 4) {
+            Map<String, String> field = new LinkedHashMap<String, String>();
+            field.put(command.get(2), command.get(3));
+            hset(command.get(1), field);
+            out.write(bytes(":1\r\n"));
+        } else if (name.equals("DEL")) {
+            int n = 0;
+            for (String key : command.subList(1, command.size())) {
+                n += hashes.remove(key) == null ? 0 : 1;
+            }
+            out.write(bytes(":" + n + "\r\n"));
+        } else if (name.equals("PING")) {
+            out.write(bytes("+PONG\r\n"));
+        } else if (name.equals("AUTH") || name.equals("SELECT") || name.equals("CONFIG")) {
+            out.write(OK);
+        } else if (name.equals("SUBSCRIBE") || name.equals("PSUBSCRIBE")) {
+            // one confirmation per channel, with the subscription count;
+            // patterns are kept apart from channels by a "p" prefix
+            for (String channel : command.subList(1, command.size())) {
+                subscriptions.add(name.charAt(0) == 'P' ? "p" + channel : "c" + channel);
+                writeSubscription(out, name.toLowerCase(), channel, subscriptions.size());
+            }
+        } else if (name.equals("UNSUBSCRIBE") || name.equals("PUNSUBSCRIBE")) {
+            for (String channel : command.subList(1, command.size())) {
+                subscriptions.remove(name.charAt(0) == 'P' ? "p" + channel : "c" + channel);
+                writeSubscription(out, name.toLowerCase(), channel, subscriptions.size());
+            }
+        } else {
+            out.write(bytes("-ERR unknown command '" + name + "'\r\n"));
+        }
+    }
+
+    /** A RESP array of bulk strings, or an inline command. */
+    static List<String> readCommand(InputStream in) throws IOException {
+        String line = readLine(in);
+        List<String> args = new ArrayList<String>();
+        if (line.startsWith("*")) {
+            int n = Integer.parseInt(line.substring(1));
+            for (int i = 0; i < n; i++) {
+                args.add(readBulk(in));
+            }
+        } else {
+            for (String arg : line.trim().split("\\s+")) {
+                if (!arg.isEmpty()) {
+                    args.add(arg);
+                }
+            }
+        }
+        return args;
+    }
+
+    static String readBulk(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (!header.startsWith("$")) {
+            throw new IOException("expected a bulk string, got " + header);
+        }
+        int len = Integer.parseInt(header.substring(1));
+        if (len < 0) {
+            return null;
+        }
+        byte[] buf = new byte[len];
+        int off = 0;
+        while (off < len) {
+            int n = in.read(buf, off, len - off);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+        }
+        readLine(in);
+        return new String(buf, "UTF-8");
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static void writeCommand(OutputStream out, String... args) throws IOException {
+        out.write(bytes("*" + args.length + "\r\n"));
+        for (String arg : args) {
+            writeBulk(out, arg);
+        }
+    }
+
+    private static void writeSubscription(OutputStream out, String kind, String channel, int count)
+        throws IOException {
+        out.write(bytes("*3\r\n"));
+        writeBulk(out, kind);
+        writeBulk(out, channel);
+        out.write(bytes(":" + count + "\r\n"));
+    }
+
+    static void writeBulk(OutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.write(bytes("$" + b.length + "\r\n"));
+        out.write(b);
+        out.write(bytes("\r\n"));
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
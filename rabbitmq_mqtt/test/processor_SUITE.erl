@@ -19,10 +19,15 @@
 
 -include_lib("common_test/include/ct.hrl").
 -include_lib("eunit/include/eunit.hrl").
+-include_lib("amqp_client/include/amqp_client.hrl").
+-include("rabbit_mqtt.hrl").
+-include("rabbit_mqtt_frame.hrl").
 
 all() ->
     [
-      {group, non_parallel_tests}
+      {group, non_parallel_tests},
+      {group, outbound},
+      {group, acks}
     ].
 
 groups() ->
@@ -30,7 +35,18 @@ groups() ->
       {non_parallel_tests, [], [
                                 ignores_colons_in_username_if_option_set,
                                 interprets_colons_in_username_if_option_not_set
-                               ]}
+                               ]},
+      {outbound, [], [
+                      frames_are_buffered_until_flushed,
+                      buffer_flushed_when_full,
+                      buffer_flushed_when_old
+                     ]},
+      {acks, [], [
+                  in_order_pubacks_make_one_ack,
+                  out_of_order_pubacks,
+                  acks_flushed_below_prefetch,
+                  unknown_puback_ignored
+                 ]}
     ].
 
 suite() ->
@@ -45,7 +61,11 @@ end_per_suite(Config) ->
 init_per_group(_, Config) -> Config.
 end_per_group(_, Config) -> Config.
 init_per_testcase(_, Config) -> Config.
-end_per_testcase(_, Config) -> Config.
+
+end_per_testcase(_, Config) ->
+    application:unset_env(rabbitmq_mqtt, outbound_buffer),
+    application:unset_env(rabbitmq_mqtt, prefetch),
+    Config.
 
 ignore_colons(B) -> application:set_env(rabbitmq_mqtt, ignore_colons_in_username, B).
 
@@ -58,3 +78,114 @@ interprets_colons_in_username_if_option_not_set(_Config) ->
    ignore_colons(false),
    ?assertEqual({<<"a:b">>, <<"c">>},
                  rabbit_mqtt_processor:get_vhost_username(<<"a:b:c">>)).
+
+%% -------------------------------------------------------------------
+%% Outbound buffer
+%% -------------------------------------------------------------------
+
+-define(PINGRESP_BIN, <<16#d0, 0>>).
+
+frames_are_buffered_until_flushed(_Config) ->
+    {Client, PState} = connection(),
+    Send = PState#proc_state.send_fun,
+    [Send(pingresp(), PState) || _ <- lists:seq(1, 3)],
+    true = rabbit_mqtt_processor:pending_output(),
+    {error, timeout} = gen_tcp:recv(Client, 0, 100),
+    rabbit_mqtt_processor:flush_client(PState),
+    false = rabbit_mqtt_processor:pending_output(),
+    Expected = binary:copy(?PINGRESP_BIN, 3),
+    {ok, Expected} = gen_tcp:recv(Client, 6, 1000).
+
+buffer_flushed_when_full(_Config) ->
+    ok = application:set_env(rabbitmq_mqtt, outbound_buffer, [{max_bytes, 5},
+                                                              {max_delay, 60000}]),
+    {Client, PState} = connection(),
+    Send = PState#proc_state.send_fun,
+    [Send(pingresp(), PState) || _ <- lists:seq(1, 4)],
+    Expected = binary:copy(?PINGRESP_BIN, 3),
+    {ok, Expected} = gen_tcp:recv(Client, 6, 1000),
+    true = rabbit_mqtt_processor:pending_output(),
+    rabbit_mqtt_processor:flush_client(PState),
+    {ok, ?PINGRESP_BIN} = gen_tcp:recv(Client, 2, 1000).
+
+buffer_flushed_when_old(_Config) ->
+    ok = application:set_env(rabbitmq_mqtt, outbound_buffer, [{max_bytes, 65536},
+                                                              {max_delay, 50}]),
+    {Client, PState} = connection(),
+    Send = PState#proc_state.send_fun,
+    Send(pingresp(), PState),
+    timer:sleep(100),
+    Send(pingresp(), PState),
+    false = rabbit_mqtt_processor:pending_output(),
+    Expected = binary:copy(?PINGRESP_BIN, 2),
+    {ok, Expected} = gen_tcp:recv(Client, 4, 1000).
+
+pingresp() ->
+    #mqtt_frame{fixed = #mqtt_frame_fixed{type = ?PINGRESP}}.
+
+%% A processor state on the server side of a loopback connection.
+connection() ->
+    {ok, LSock} = gen_tcp:listen(0, [binary, {active, false}]),
+    {ok, Port} = inet:port(LSock),
+    {ok, Client} = gen_tcp:connect("localhost", Port, [binary, {active, false}]),
+    {ok, Server} = gen_tcp:accept(LSock),
+    ok = gen_tcp:close(LSock),
+    {Client, rabbit_mqtt_processor:initial_state(Server, none)}.
+
+%% -------------------------------------------------------------------
+%% Acks
+%% -------------------------------------------------------------------
+
+in_order_pubacks_make_one_ack(_Config) ->
+    PState = puback([1, 2], awaiting([{1, 101}, {2, 102}, {3, 103}])),
+    true = rabbit_mqtt_processor:pending_acks(PState),
+    PState1 = rabbit_mqtt_processor:flush_acks(PState),
+    false = rabbit_mqtt_processor:pending_acks(PState1),
+    [#'basic.ack'{delivery_tag = 102, multiple = true}] = acks().
+
+out_of_order_pubacks(_Config) ->
+    PState = puback([3, 2], awaiting([{1, 101}, {2, 102}, {3, 103}])),
+    _ = rabbit_mqtt_processor:flush_acks(PState),
+    %% 101 is not acked by the client yet
+    [#'basic.ack'{delivery_tag = 102, multiple = false},
+     #'basic.ack'{delivery_tag = 103, multiple = false}] =
+        lists:keysort(#'basic.ack'.delivery_tag, acks()),
+    PState1 = puback([1], PState),
+    _ = rabbit_mqtt_processor:flush_acks(PState1),
+    [#'basic.ack'{delivery_tag = 101, multiple = true}] = acks().
+
+acks_flushed_below_prefetch(_Config) ->
+    ok = application:set_env(rabbitmq_mqtt, prefetch, 4),
+    PState = puback([1, 2], awaiting([{1, 101}, {2, 102}, {3, 103}, {4, 104}])),
+    false = rabbit_mqtt_processor:pending_acks(PState),
+    [#'basic.ack'{delivery_tag = 102, multiple = true}] = acks().
+
+unknown_puback_ignored(_Config) ->
+    PState = puback([7], awaiting([{1, 101}])),
+    false = rabbit_mqtt_processor:pending_acks(PState).
+
+%% A connected processor state with deliveries waiting for their
+%% PUBACK, acking to a "channel" that is the test process.
+awaiting(Deliveries) ->
+    {_Client, PState} = connection(),
+    PState#proc_state{connection   = self(),
+                      channels     = {self(), undefined},
+                      awaiting_ack = queue:from_list(Deliveries)}.
+
+puback(MsgIds, PState) ->
+    lists:foldl(fun (MsgId, PS) ->
+                        {ok, PS1, _} = rabbit_mqtt_processor:process_frame(
+                                         #mqtt_frame{fixed    = #mqtt_frame_fixed{type = ?PUBACK},
+                                                     variable = #mqtt_frame_publish{message_id = MsgId}},
+                                         PS),
+                        PS1
+                end, PState, MsgIds).
+
+%% The basic.acks cast to the channel so far.
+acks() ->
+    receive
+        {'$gen_cast', Msg} when is_tuple(Msg) ->
+            [M || M <- tuple_to_list(Msg), is_record(M, 'basic.ack')] ++ acks()
+    after 100 ->
+        []
+    end.
@@ -12,7 +12,10 @@ all() ->
 groups() ->
     [
       {non_parallel_tests, [], [
-                                block
+                                block,
+                                block_async_recv,
+                                hibernate_when_idle,
+                                single_queue_no_duplicates
                                ]}
     ].
 
@@ -57,10 +60,22 @@ end_per_testcase(Testcase, Config) ->
 %% -------------------------------------------------------------------
 
 block(Config) ->
+    block(Config, <<"simpleClient">>).
+
+%% the same without {active, N}
+block_async_recv(Config) ->
+    ok = rpc(Config, application, set_env, [rabbitmq_mqtt, socket_active_n, false]),
+    try
+        block(Config, <<"asyncRecvClient">>)
+    after
+        rpc(Config, application, unset_env, [rabbitmq_mqtt, socket_active_n])
+    end.
+
+block(Config, ClientId) ->
     P = rabbit_ct_broker_helpers:get_node_config(Config, 0, tcp_port_mqtt),
     {ok, C} = emqttc:start_link([{host, "localhost"},
                                  {port, P},
-                                 {client_id, <<"simpleClient">>},
+                                 {client_id, ClientId},
                                  {proto_ver, 3},
                                  {logger, info},
                                  {puback_timeout, 1}]),
@@ -103,6 +118,62 @@ block(Config) ->
 
 
 
+hibernate_when_idle(Config) ->
+    ok = rpc(Config, application, set_env, [rabbitmq_mqtt, hibernate_after, 200]),
+    P = rabbit_ct_broker_helpers:get_node_config(Config, 0, tcp_port_mqtt),
+    {ok, C} = emqttc:start_link([{host, "localhost"},
+                                 {port, P},
+                                 {client_id, <<"idleClient">>},
+                                 {proto_ver, 3},
+                                 {logger, info}]),
+    try
+        emqttc:subscribe(C, <<"TopicIdle">>, qos0),
+        emqttc:publish(C, <<"TopicIdle">>, <<"Payload">>),
+        expect_publishes(<<"TopicIdle">>, [<<"Payload">>]),
+        {ok, Reader} = rpc(Config, rabbit_mqtt_collector, lookup, [<<"idleClient">>]),
+        %% busy connections stay awake
+        {current_function, Busy} = rpc(Config, erlang, process_info,
+                                       [Reader, current_function]),
+        ?assertNotEqual({erlang, hibernate, 3}, Busy),
+        timer:sleep(1000),
+        {current_function, {erlang, hibernate, 3}} =
+            rpc(Config, erlang, process_info, [Reader, current_function])
+    after
+        emqttc:disconnect(C),
+        rpc(Config, application, unset_env, [rabbitmq_mqtt, hibernate_after])
+    end.
+
+%% overlapping subscriptions of different QoS share one queue and
+%% deliver a message once
+single_queue_no_duplicates(Config) ->
+    ok = rpc(Config, application, set_env, [rabbitmq_mqtt, subscription_queue, single]),
+    P = rabbit_ct_broker_helpers:get_node_config(Config, 0, tcp_port_mqtt),
+    {ok, C} = emqttc:start_link([{host, "localhost"},
+                                 {port, P},
+                                 {client_id, <<"singleQueueClient">>},
+                                 {proto_ver, 3},
+                                 {logger, info}]),
+    try
+        emqttc:sync_subscribe(C, <<"TopicS/+">>, qos0),
+        emqttc:sync_subscribe(C, <<"TopicS/b">>, qos1),
+        {ok, _} = emqttc:sync_publish(C, <<"TopicS/b">>, <<"Once">>, [{qos, 1}]),
+        expect_publishes(<<"TopicS/b">>, [<<"Once">>]),
+        receive
+            {publish, <<"TopicS/b">>, <<"Once">>} -> throw(duplicate_delivery)
+        after 500 ->
+            ok
+        end,
+        [_] = [Q || Q <- rpc(Config, rabbit_amqqueue, list, []),
+                    is_client_queue(<<"singleQueueClient">>, element(2, Q))]
+    after
+        emqttc:disconnect(C),
+        rpc(Config, application, unset_env, [rabbitmq_mqtt, subscription_queue])
+    end.
+
+is_client_queue(ClientId, {resource, _VHost, queue, Name}) ->
+    Prefix = <<"mqtt-subscription-", ClientId/binary>>,
+    binary:longest_common_prefix([Name, Prefix]) =:= byte_size(Prefix).
+
 expect_publishes(_Topic, []) -> ok;
 expect_publishes(Topic, [Payload|Rest]) ->
     receive
@@ -0,0 +1,436 @@
+%% The contents of this file are subject to the Mozilla Public License
+%% Version 1.1 (the "License"); you may not use this file except in
+%% compliance with the License. You may obtain a copy of the License
+%% at http://www.mozilla.org/MPL/
+%%
+%% Software distributed under the License is distributed on an "AS IS"
+%% basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+%% the License for the specific language governing rights and
+%% limitations under the License.
+%%
+%% The Original Code is RabbitMQ.
+%%
+%% The Initial Developer of the Original Code is GoPivotal, Inc.
+%% Copyright (c) 2007-2016 Pivotal Software, Inc.  All rights reserved.
+%%
+
+-module(retainer_SUITE).
+-compile([export_all]).
+
+-include_lib("common_test/include/ct.hrl").
+-include_lib("eunit/include/eunit.hrl").
+-include("rabbit_mqtt.hrl").
+-include("rabbit_mqtt_frame.hrl").
+
+all() ->
+    [
+      {group, index},
+      {group, stores},
+      {group, ets_log},
+      {group, segments}
+    ].
+
+groups() ->
+    [
+      {index, [], [
+                   exact_filter,
+                   single_level_wildcard,
+                   multi_level_wildcard,
+                   dollar_topics,
+                   delete_prunes_branches
+                  ]},
+      {stores, [], [
+                    ets_store_match,
+                    dets_store_match,
+                    ets_store_upgrade,
+                    dets_store_upgrade
+                   ]},
+      {ets_log, [], [
+                     log_survives_crash,
+                     log_compacted_into_snapshot,
+                     log_torn_tail,
+                     switch_to_on_shutdown
+                    ]},
+      {segments, [], [
+                      segments_store_match,
+                      segments_crash_recovery,
+                      segments_compaction,
+                      segments_deletes_do_not_pile_up,
+                      segments_cache_budget,
+                      segments_read_by_others
+                     ]}
+    ].
+
+suite() ->
+    [{timetrap, {seconds, 60}}].
+
+init_per_suite(Config) -> Config.
+end_per_suite(Config) -> Config.
+
+init_per_group(ets_log, Config) ->
+    ok = application:set_env(rabbitmq_mqtt, retained_message_store_ets_persistence, log),
+    Config;
+init_per_group(segments, Config) ->
+    ok = application:set_env(rabbitmq_mqtt, retained_message_store_segments_file_size, 4096),
+    Config;
+init_per_group(_, Config) ->
+    Config.
+
+end_per_group(ets_log, Config) ->
+    ok = application:unset_env(rabbitmq_mqtt, retained_message_store_ets_persistence),
+    ok = application:unset_env(rabbitmq_mqtt, retained_message_store_ets_snapshot_threshold),
+    Config;
+end_per_group(segments, Config) ->
+    ok = application:unset_env(rabbitmq_mqtt, retained_message_store_segments_file_size),
+    ok = application:unset_env(rabbitmq_mqtt, retained_message_store_segments_cache_size),
+    Config;
+end_per_group(_, Config) ->
+    Config.
+
+init_per_testcase(_, Config) -> Config.
+end_per_testcase(_, Config) -> Config.
+
+%% -------------------------------------------------------------------
+%% Index
+%% -------------------------------------------------------------------
+
+-define(TOPICS, [<<"sensors/kitchen/temp">>, <<"sensors/kitchen/humidity">>,
+                 <<"sensors/hall/temp">>, <<"sensors">>, <<"site/a/b/c">>,
+                 <<"/leading">>, <<"$SYS/broker">>]).
+
+exact_filter(_Config) ->
+    Idx = index(?TOPICS),
+    [<<"sensors/hall/temp">>] = match(<<"sensors/hall/temp">>, Idx),
+    [] = match(<<"sensors/hall">>, Idx),
+    [<<"/leading">>] = match(<<"/leading">>, Idx).
+
+single_level_wildcard(_Config) ->
+    Idx = index(?TOPICS),
+    [<<"sensors/hall/temp">>, <<"sensors/kitchen/temp">>] =
+        match(<<"sensors/+/temp">>, Idx),
+    [<<"sensors">>] = match(<<"+">>, Idx),
+    [<<"/leading">>] = match(<<"+/leading">>, Idx),
+    [] = match(<<"sensors/+">>, Idx).
+
+multi_level_wildcard(_Config) ->
+    Idx = index(?TOPICS),
+    [<<"sensors">>, <<"sensors/hall/temp">>, <<"sensors/kitchen/humidity">>,
+     <<"sensors/kitchen/temp">>] = match(<<"sensors/#">>, Idx),
+    [<<"site/a/b/c">>] = match(<<"site/+/b/#">>, Idx),
+    ?assertEqual(lists:sort(?TOPICS) -- [<<"$SYS/broker">>], match(<<"#">>, Idx)).
+
+dollar_topics(_Config) ->
+    Idx = index(?TOPICS),
+    [] = match(<<"+/broker">>, Idx),
+    [<<"$SYS/broker">>] = match(<<"$SYS/#">>, Idx),
+    [<<"$SYS/broker">>] = match(<<"$SYS/+">>, Idx).
+
+delete_prunes_branches(_Config) ->
+    Idx = index(?TOPICS),
+    Size = ets:info(Idx, size),
+    ok = rabbit_mqtt_retained_msg_index:insert(<<"x/y/z">>, Idx),
+    ?assertEqual(Size + 3, ets:info(Idx, size)),
+    ok = rabbit_mqtt_retained_msg_index:delete(<<"x/y/z">>, Idx),
+    ?assertEqual(Size, ets:info(Idx, size)),
+    %% a topic that is also a prefix of others keeps the branch
+    ok = rabbit_mqtt_retained_msg_index:delete(<<"sensors">>, Idx),
+    [] = match(<<"sensors">>, Idx),
+    3 = length(match(<<"sensors/#">>, Idx)).
+
+index(Topics) ->
+    Idx = rabbit_mqtt_retained_msg_index:new(),
+    [ok = rabbit_mqtt_retained_msg_index:insert(T, Idx) || T <- Topics],
+    Idx.
+
+match(Filter, Idx) ->
+    lists:sort(rabbit_mqtt_retained_msg_index:match(Filter, Idx)).
+
+%% -------------------------------------------------------------------
+%% Stores
+%% -------------------------------------------------------------------
+
+ets_store_match(Config) ->
+    store_match(rabbit_mqtt_retained_msg_store_ets, Config).
+
+dets_store_match(Config) ->
+    store_match(rabbit_mqtt_retained_msg_store_dets, Config).
+
+store_match(Mod, Config) ->
+    Dir = ?config(priv_dir, Config),
+    VHost = atom_to_binary(Mod, latin1),
+    Store = Mod:new(Dir, VHost),
+    [ok = Mod:insert(T, msg(T), Store) || T <- ?TOPICS],
+    %% overwriting and deleting keep the index in step
+    ok = Mod:insert(<<"sensors/hall/temp">>, msg(<<"sensors/hall/temp">>), Store),
+    ok = Mod:delete(<<"sensors/kitchen/humidity">>, Store),
+    ok = Mod:delete(<<"not/retained">>, Store),
+    [<<"sensors">>, <<"sensors/hall/temp">>, <<"sensors/kitchen/temp">>] =
+        lists:sort([T || #retained_message{topic = T} <- Mod:match(<<"sensors/#">>, Store)]),
+    %% and it is rebuilt on recovery
+    ok = Mod:terminate(Store),
+    {ok, Store1} = Mod:recover(Dir, VHost),
+    [<<"sensors/hall/temp">>, <<"sensors/kitchen/temp">>] =
+        lists:sort([T || #retained_message{topic = T} <- Mod:match(<<"sensors/+/temp">>, Store1)]),
+    ok = Mod:terminate(Store1).
+
+%% Stores written before topics were binaries, with charlist keys and
+%% message topics, are converted on recovery.
+ets_store_upgrade(Config) ->
+    {Dir, VHost} = store_location(ets_store_upgrade, Config),
+    Tid = ets:new(old_store, [set, public, {keypos, #retained_message.topic}]),
+    true = ets:insert(Tid, old_entries()),
+    ok = ets:tab2file(Tid, rabbit_mqtt_util:path_for(Dir, VHost)),
+    true = ets:delete(Tid),
+    store_upgrade(rabbit_mqtt_retained_msg_store_ets, Dir, VHost).
+
+dets_store_upgrade(Config) ->
+    {Dir, VHost} = store_location(dets_store_upgrade, Config),
+    {ok, T} = dets:open_file(old_store, [{type, set},
+                                         {keypos, #retained_message.topic},
+                                         {file, rabbit_mqtt_util:path_for(Dir, VHost, ".dets")}]),
+    ok = dets:insert(T, old_entries()),
+    ok = dets:close(T),
+    store_upgrade(rabbit_mqtt_retained_msg_store_dets, Dir, VHost).
+
+store_upgrade(Mod, Dir, VHost) ->
+    {ok, Store} = Mod:recover(Dir, VHost),
+    [<<"sensors/hall/temp">>, <<"sensors/kitchen/temp">>] =
+        lists:sort([T || #retained_message{topic = T} <- Mod:match(<<"sensors/+/temp">>, Store)]),
+    #retained_message{mqtt_msg = #mqtt_msg{topic = <<"sensors/hall/temp">>}} =
+        Mod:lookup(<<"sensors/hall/temp">>, Store),
+    not_found = Mod:lookup("sensors/hall/temp", Store),
+    ok = Mod:terminate(Store).
+
+old_entries() ->
+    [#retained_message{topic = T, mqtt_msg = (msg(T))#mqtt_msg{payload = <<"old">>}}
+     || T <- ["sensors/hall/temp", "sensors/kitchen/temp"]].
+
+msg(Topic) ->
+    #mqtt_msg{retain = true, qos = 0, topic = Topic, dup = false,
+              message_id = undefined, payload = Topic}.
+
+%% -------------------------------------------------------------------
+%% ETS store change log
+%% -------------------------------------------------------------------
+
+-define(ETS, rabbit_mqtt_retained_msg_store_ets).
+
+log_survives_crash(Config) ->
+    {Dir, VHost} = store_location(log_survives_crash, Config),
+    crash_after(fun () ->
+                        Store = ?ETS:new(Dir, VHost),
+                        [ok = ?ETS:insert(T, msg(T), Store) || T <- ?TOPICS],
+                        ok = ?ETS:delete(<<"sensors">>, Store),
+                        ?ETS:sync(Store)
+                end),
+    {ok, Store} = ?ETS:recover(Dir, VHost),
+    ?assertEqual(lists:sort(?TOPICS -- [<<"sensors">>, <<"$SYS/broker">>]),
+                 topics(<<"#">>, Store)),
+    #retained_message{} = ?ETS:lookup(<<"$SYS/broker">>, Store),
+    ok = ?ETS:terminate(Store).
+
+log_compacted_into_snapshot(Config) ->
+    ok = application:set_env(rabbitmq_mqtt, retained_message_store_ets_snapshot_threshold, 0),
+    {Dir, VHost} = store_location(log_compacted_into_snapshot, Config),
+    Path = rabbit_mqtt_util:path_for(Dir, VHost),
+    crash_after(fun () ->
+                        Store = ?ETS:new(Dir, VHost),
+                        %% overwrites make the log much bigger than the table
+                        [ok = ?ETS:insert(T, msg(T), Store)
+                         || _ <- lists:seq(1, 200), T <- ?TOPICS],
+                        {Store1, _} = ?ETS:sync(Store),
+                        ok = ?ETS:insert(<<"after/snapshot">>, msg(<<"after/snapshot">>), Store1),
+                        ok = ?ETS:delete(<<"sensors">>, Store1),
+                        ok = wait_for_snapshot(Path),
+                        ?ETS:sync(Store1)
+                end),
+    [_] = filelib:wildcard(filename:basename(Path) ++ ".log.*", Dir),
+    {ok, Store} = ?ETS:recover(Dir, VHost),
+    ?assertEqual(lists:sort([<<"after/snapshot">> | ?TOPICS -- [<<"sensors">>, <<"$SYS/broker">>]]),
+                 topics(<<"#">>, Store)),
+    ok = ?ETS:terminate(Store),
+    ok = application:unset_env(rabbitmq_mqtt, retained_message_store_ets_snapshot_threshold).
+
+log_torn_tail(Config) ->
+    {Dir, VHost} = store_location(log_torn_tail, Config),
+    Path = rabbit_mqtt_util:path_for(Dir, VHost),
+    crash_after(fun () ->
+                        Store = ?ETS:new(Dir, VHost),
+                        [ok = ?ETS:insert(T, msg(T), Store) || T <- ?TOPICS],
+                        ?ETS:sync(Store)
+                end),
+    %% a record cut short by the crash
+    [Log] = filelib:wildcard(Path ++ ".log.*"),
+    ok = file:write_file(Log, <<0, 0, 1, 0, 1, 2, 3>>, [append]),
+    {ok, Store} = ?ETS:recover(Dir, VHost),
+    ?assertEqual(length(?TOPICS) - 1, length(topics(<<"#">>, Store))),
+    ok = ?ETS:terminate(Store).
+
+switch_to_on_shutdown(Config) ->
+    {Dir, VHost} = store_location(switch_to_on_shutdown, Config),
+    Path = rabbit_mqtt_util:path_for(Dir, VHost),
+    crash_after(fun () ->
+                        Store = ?ETS:new(Dir, VHost),
+                        [ok = ?ETS:insert(T, msg(T), Store) || T <- ?TOPICS],
+                        ?ETS:sync(Store)
+                end),
+    ok = application:set_env(rabbitmq_mqtt, retained_message_store_ets_persistence, on_shutdown),
+    try
+        {ok, Store} = ?ETS:recover(Dir, VHost),
+        [] = filelib:wildcard(Path ++ ".log.*"),
+        ok = ?ETS:terminate(Store),
+        {ok, Store1} = ?ETS:recover(Dir, VHost),
+        ?assertEqual(length(?TOPICS) - 1, length(topics(<<"#">>, Store1))),
+        ok = ?ETS:terminate(Store1)
+    after
+        ok = application:set_env(rabbitmq_mqtt, retained_message_store_ets_persistence, log)
+    end.
+
+store_location(Name, Config) ->
+    {?config(priv_dir, Config), atom_to_binary(Name, latin1)}.
+
+topics(Filter, Store) ->
+    lists:sort([T || #retained_message{topic = T} <- ?ETS:match(Filter, Store)]).
+
+%% Runs Fun in a process owning the store and kills it, which takes the
+%% tables and the open log with it like a node crash would.
+crash_after(Fun) ->
+    Self = self(),
+    {Pid, MRef} = spawn_monitor(fun () ->
+                                        Fun(),
+                                        Self ! {done, self()},
+                                        receive after infinity -> ok end
+                                end),
+    receive
+        {done, Pid}                  -> exit(Pid, kill);
+        {'DOWN', MRef, _, _, Reason} -> exit({store_owner_died, Reason})
+    end,
+    receive {'DOWN', MRef, _, _, _} -> ok end.
+
+wait_for_snapshot(Path) ->
+    case {filelib:is_file(Path), filelib:wildcard(Path ++ ".log.*")} of
+        {true, [_]} -> ok;
+        _           -> timer:sleep(10),
+                       wait_for_snapshot(Path)
+    end.
+
+%% -------------------------------------------------------------------
+%% Segments store
+%% -------------------------------------------------------------------
+
+-define(SEG, rabbit_mqtt_retained_msg_store_segments).
+
+segments_store_match(Config) ->
+    store_match(?SEG, Config).
+
+segments_crash_recovery(Config) ->
+    {Dir, VHost} = store_location(segments_crash_recovery, Config),
+    crash_after(fun () ->
+                        Store = ?SEG:new(Dir, VHost),
+                        [ok = ?SEG:insert(T, msg(T, N), Store)
+                         || N <- lists:seq(1, 20), T <- ?TOPICS],
+                        ok = ?SEG:delete(<<"sensors">>, Store)
+                end),
+    %% a record cut short by the crash
+    [{_, Last} | _] = lists:reverse(segment_files(Dir, VHost)),
+    ok = file:write_file(Last, <<0, 0, 1, 0, 1, 2, 3>>, [append]),
+    {ok, Store} = ?SEG:recover(Dir, VHost),
+    ?assertEqual(lists:sort(?TOPICS -- [<<"sensors">>, <<"$SYS/broker">>]),
+                 seg_topics(<<"#">>, Store)),
+    #retained_message{mqtt_msg = #mqtt_msg{payload = <<"20">>}} =
+        ?SEG:lookup(<<"sensors/hall/temp">>, Store),
+    %% and writes go on after the last complete record
+    ok = ?SEG:insert(<<"sensors">>, msg(<<"sensors">>), Store),
+    ok = ?SEG:terminate(Store),
+    {ok, Store1} = ?SEG:recover(Dir, VHost),
+    ?assertEqual(length(?TOPICS) - 1, length(seg_topics(<<"#">>, Store1))),
+    ok = ?SEG:terminate(Store1).
+
+segments_compaction(Config) ->
+    {Dir, VHost} = store_location(segments_compaction, Config),
+    crash_after(fun () ->
+                        Store = ?SEG:new(Dir, VHost),
+                        ok = ?SEG:insert(<<"deleted">>, msg(<<"deleted">>), Store),
+                        [ok = ?SEG:insert(T, msg(T, N), Store)
+                         || N <- lists:seq(1, 100), T <- ?TOPICS],
+                        ok = ?SEG:delete(<<"deleted">>, Store),
+                        Before = length(segment_files(Dir, VHost)),
+                        [?SEG:sync(Store) || _ <- lists:seq(1, Before)],
+                        ?assert(length(segment_files(Dir, VHost)) < Before div 4),
+                        #retained_message{mqtt_msg = #mqtt_msg{payload = <<"100">>}} =
+                            ?SEG:lookup(<<"site/a/b/c">>, Store)
+                end),
+    %% neither the compacted puts nor the dropped deletes bring anything back
+    {ok, Store} = ?SEG:recover(Dir, VHost),
+    ?assertEqual(lists:sort(?TOPICS -- [<<"$SYS/broker">>]), seg_topics(<<"#">>, Store)),
+    [#retained_message{mqtt_msg = #mqtt_msg{payload = <<"100">>}}] =
+        ?SEG:match(<<"site/a/b/c">>, Store),
+    ok = ?SEG:terminate(Store).
+
+%% the oldest segment stays mostly live and is never compacted, which
+%% must not keep the deletes of topics retained after it around
+segments_deletes_do_not_pile_up(Config) ->
+    {Dir, VHost} = store_location(segments_deletes_do_not_pile_up, Config),
+    Store = ?SEG:new(Dir, VHost),
+    Kept = [<<"kept/", (integer_to_binary(N))/binary>> || N <- lists:seq(1, 40)],
+    [ok = ?SEG:insert(T, msg(T), Store) || T <- Kept],
+    Usage = [begin
+                 Gone = [<<"gone/", (integer_to_binary(R))/binary, "/",
+                           (integer_to_binary(N))/binary>> || N <- lists:seq(1, 30)],
+                 [ok = ?SEG:insert(T, msg(T), Store) || T <- Gone],
+                 [ok = ?SEG:delete(T, Store) || T <- Gone],
+                 [?SEG:sync(Store) || _ <- lists:seq(1, 10)],
+                 Files = segment_files(Dir, VHost),
+                 {length(Files), lists:sum([filelib:file_size(F) || {_, F} <- Files])}
+             end || R <- lists:seq(1, 10)],
+    {Early, Late} = lists:split(5, Usage),
+    ?assert(lists:max([N || {N, _} <- Late]) =< lists:max([N || {N, _} <- Early])),
+    ?assert(lists:max([B || {_, B} <- Late]) =< lists:max([B || {_, B} <- Early])),
+    ok = ?SEG:terminate(Store),
+    {ok, Store1} = ?SEG:recover(Dir, VHost),
+    ?assertEqual(lists:sort(Kept), seg_topics(<<"#">>, Store1)),
+    ok = ?SEG:terminate(Store1).
+
+segments_cache_budget(Config) ->
+    ok = application:set_env(rabbitmq_mqtt, retained_message_store_segments_cache_size, 2000),
+    {Dir, VHost} = store_location(segments_cache_budget, Config),
+    Store = ?SEG:new(Dir, VHost),
+    Topics = [integer_to_binary(N) || N <- lists:seq(1, 200)],
+    [ok = ?SEG:insert(T, msg(T), Store) || T <- Topics],
+    ?SEG:sync(Store),
+    [Cache] = [T || T <- ets:all(), ets:info(T, owner) =:= self(),
+                    ets:info(T, name) =:= rabbit_mqtt_retained_msg_cache],
+    [{_, Bytes}] = ets:lookup(Cache, '$bytes'),
+    ?assert(Bytes =< 2000),
+    ?assert(ets:info(Cache, size) < 200),
+    %% everything is still there, mostly read from the files
+    200 = length([ok || T <- Topics, #retained_message{} <- [?SEG:lookup(T, Store)]]),
+    ok = ?SEG:terminate(Store),
+    ok = application:unset_env(rabbitmq_mqtt, retained_message_store_segments_cache_size).
+
+segments_read_by_others(Config) ->
+    {Dir, VHost} = store_location(segments_read_by_others, Config),
+    Store = ?SEG:new(Dir, VHost),
+    [ok = ?SEG:insert(T, msg(T), Store) || T <- ?TOPICS],
+    Self = self(),
+    spawn(fun () -> Self ! {read, seg_topics(<<"sensors/+/temp">>, Store),
+                            ?SEG:lookup(<<"sensors">>, Store)}
+          end),
+    receive
+        {read, [<<"sensors/hall/temp">>, <<"sensors/kitchen/temp">>],
+         #retained_message{topic = <<"sensors">>}} -> ok
+    after 5000 ->
+        exit(no_read)
+    end,
+    ok = ?SEG:terminate(Store).
+
+seg_topics(Filter, Store) ->
+    lists:sort([T || #retained_message{topic = T} <- ?SEG:match(Filter, Store)]).
+
+segment_files(Dir, VHost) ->
+    Path = rabbit_mqtt_util:path_for(Dir, VHost, ".segments"),
+    lists:sort([{list_to_integer(filename:basename(F, ".seg")), filename:join(Path, F)}
+                || F <- filelib:wildcard("*.seg", Path)]).
+
+msg(Topic, N) ->
+    (msg(Topic))#mqtt_msg{payload = integer_to_binary(N)}.
@@ -30,7 +30,9 @@ groups() ->
                                 coerce_exchange,
                                 coerce_vhost,
                                 coerce_default_user,
-                                coerce_default_pass
+                                coerce_default_pass,
+                                mqtt_to_amqp_topic,
+                                amqp_to_mqtt_topic
                                ]}
     ].
 
@@ -59,3 +61,19 @@ coerce_default_user(_) ->
 
 coerce_default_pass(_) ->
     ?assertEqual(<<"guest_pass">>, rabbit_mqtt_util:env(default_pass)).
+
+mqtt_to_amqp_topic(_) ->
+    ?assertEqual(<<"a.b.c">>, rabbit_mqtt_util:mqtt2amqp(<<"a/b/c">>)),
+    ?assertEqual(<<"sensors.*.temp.#">>,
+                 rabbit_mqtt_util:mqtt2amqp(<<"sensors/+/temp/#">>)),
+    ?assertEqual(<<".x."/utf8>>, rabbit_mqtt_util:mqtt2amqp(<<"/x/"/utf8>>)),
+    ?assertEqual(<<"caf\x{e9}.t"/utf8>>,
+                 rabbit_mqtt_util:mqtt2amqp(<<"caf\x{e9}/t"/utf8>>)),
+    ?assertEqual(<<>>, rabbit_mqtt_util:mqtt2amqp(<<>>)).
+
+amqp_to_mqtt_topic(_) ->
+    ?assertEqual(<<"a/b/c">>, rabbit_mqtt_util:amqp2mqtt(<<"a.b.c">>)),
+    ?assertEqual(<<"sensors/+/temp/#">>,
+                 rabbit_mqtt_util:amqp2mqtt(<<"sensors.*.temp.#">>)),
+    ?assertEqual(<<"caf\x{e9}/t"/utf8>>,
+                 rabbit_mqtt_util:amqp2mqtt(<<"caf\x{e9}.t"/utf8>>)).